@@ -19,12 +19,177 @@
  */
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.*;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Formatter;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 public class Book {
+    // report queries; SchemaIndexes.verify runs EXPLAIN on the same text
+    static final String ORDER_AUTHOR_NAME_SQL = "" +
+            "SELECT * " +
+            "FROM Authors " +
+            "ORDER BY LastName, firstName ASC";
+    static final String ALL_PUBLISHERS_SQL = "" +
+            "SELECT publisherName " +
+            "FROM Publishers ";
+    static final String BOOKS_BY_PUBLISHER_SQL = "" +
+            "SELECT Titles.title, Titles.years, Titles.isbn " +
+            "FROM Titles, Publishers " +
+            "WHERE Titles.publisherID = Publishers.publisherID AND Publishers.publisherName = ? " +
+            "ORDER BY Titles.title ASC";
+    static final String PRINT_TITLES_SQL = "" +
+            "SELECT title, years, isbn " +
+            "FROM Titles " +
+            "ORDER BY title ASC";
+    // keyset pages of the two listings; the next page seeks past the last key of the previous one
+    static final String AUTHORS_FIRST_PAGE_SQL = "" +
+            "SELECT authorID, firstName, lastName " +
+            "FROM Authors " +
+            "ORDER BY lastName, firstName, authorID " +
+            "LIMIT ?";
+    static final String AUTHORS_NEXT_PAGE_SQL = "" +
+            "SELECT authorID, firstName, lastName " +
+            "FROM Authors " +
+            "WHERE (lastName, firstName, authorID) > (?, ?, ?) " +
+            "ORDER BY lastName, firstName, authorID " +
+            "LIMIT ?";
+    static final String TITLES_FIRST_PAGE_SQL = "" +
+            "SELECT title, years, isbn " +
+            "FROM Titles " +
+            "ORDER BY title, isbn " +
+            "LIMIT ?";
+    static final String TITLES_NEXT_PAGE_SQL = "" +
+            "SELECT title, years, isbn " +
+            "FROM Titles " +
+            "WHERE (title, isbn) > (?, ?) " +
+            "ORDER BY title, isbn " +
+            "LIMIT ?";
+    // BooksPopulate.bookStartByHarryPotter
+    static final String TITLE_PREFIX_SQL = "" +
+            "SELECT title " +
+            "FROM Titles " +
+            "WHERE title like ?";
+
+    // report table layouts
+    static final TableRenderer.Layout AUTHORS_TABLE = new TableRenderer.Layout()
+            .left("authorID", 9).left("first name", 12).left("last name", 12);
+    static final TableRenderer.Layout PUBLISHERS_TABLE = new TableRenderer.Layout()
+            .left("publisherName", 25);
+    static final TableRenderer.Layout BOOKS_BY_PUBLISHER_TABLE = new TableRenderer.Layout()
+            .left("title", 30).left("year", 12).left("isbn", 12);
+    static final TableRenderer.Layout TITLES_TABLE = new TableRenderer.Layout()
+            .left("title", 60).left("year", 12).left("isbn", 12);
+    static final TableRenderer.Layout SEARCH_TABLE = new TableRenderer.Layout()
+            .left("title", 60).left("isbn", 12).right("score", 8);
+
+    // insert statements of the loaders, indexed by the LoadStats table constants
+    static final String[] INSERT_SQL = {
+            "INSERT INTO Authors(authorID, firstName, lastName) values(?,?,?)",
+            "INSERT INTO Publishers(publisherID, publisherName) values(?,?)",
+            "INSERT INTO Titles(editionNumber, years, publisherID, price, title, isbn) values(?,?,?,?,?,?)",
+            "INSERT INTO AuthorISBN(authorID, isbn) values(?,?)"
+    };
+    // what an upsert does with an existing key: update the attributes, or nothing for the AuthorISBN link rows
+    static final String[] UPSERT_SUFFIX = {
+            " ON DUPLICATE KEY UPDATE firstName = VALUES(firstName), lastName = VALUES(lastName)",
+            " ON DUPLICATE KEY UPDATE publisherName = VALUES(publisherName)",
+            " ON DUPLICATE KEY UPDATE editionNumber = VALUES(editionNumber), years = VALUES(years), " +
+                    "publisherID = VALUES(publisherID), price = VALUES(price), title = VALUES(title)",
+            ""
+    };
+    // --upsert=true: the loaders write with upserts and the existing rows are kept
+    static volatile boolean upsert;
+
+    // results of booksByPublisher by publisher name
+    static final PublisherBooksCache booksByPublisherCache = new PublisherBooksCache();
+    // in-memory copy of Titles for the analytic queries; null unless --snapshot=true
+    static volatile TitlesSnapshot titlesSnapshot;
+    // how orderAuthorName and printTitles read their rows: full, paged or stream (--listing)
+    static volatile String listing = "full";
+    // rows per keyset page, or rows per server round trip when streaming (--pageSize)
+    static volatile int pageSize = 1000;
+    // inverted index over Titles.title; null unless --search=true
+    static volatile TitleSearchIndex titleIndex;
+
     public static void main(String[] args) throws Exception {
         // Four tables will be created in the current program:
         // Schema of the four tables can be seen in E/R diagram in the report.
@@ -36,7 +201,16 @@ public class Book {
 
         // The sample book data is stored in a tab-separated data file called BookDataNew
         // name of the Books data file
-        if(args.length != 4){
+        // Optional arguments after the first four are --name=value pairs, e.g. --mode=batch --batchSize=1000
+        if (args.length > 0 && args[0].equals("benchmark")){
+            BookBenchmark.main(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("generate")){
+            CatalogGenerator.main(args);
+            return;
+        }
+        if(args.length < 4){
             return;
         }
 
@@ -48,11 +222,64 @@ public class Book {
         String username = args[2]; // root
         String password = args[3];
 
+        // load mode: "row" inserts one row at a time, "batch" buffers rows with addBatch,
+        // "multirow" sends many rows per INSERT ... VALUES statement
+        String mode = getOption(args, "mode", "row");
+        int batchSize = Integer.parseInt(getOption(args, "batchSize", "1000"));
+
+        // the delta mode keeps the existing tables and only applies the differences
+        boolean incremental = mode.equals("delta");
+        // a batch load that left a checkpoint file behind resumes instead of starting over
+        String checkpointFile = getOption(args, "checkpoint", null);
+        if (checkpointFile != null && !mode.equals("batch")){
+            // only loadBatch reads the checkpoint; the other modes would reload on top of the kept tables
+            throw new Exception("--checkpoint is only supported with --mode=batch, not --mode=" + mode);
+        }
+        boolean resuming = checkpointFile != null && Files.exists(Paths.get(checkpointFile));
+        // upserts refresh the rows in place, so a reload with --upsert=true keeps the tables
+        upsert = Boolean.parseBoolean(getOption(args, "upsert", "false"));
+        boolean keepTables = incremental || resuming || upsert;
+        // the example inserts and edits after the reports expect freshly loaded tables
+        boolean demoWrites = Boolean.parseBoolean(getOption(args, "demoWrites", String.valueOf(!keepTables)));
+
+        // loader threads of the parallel and pipeline modes, each with its own connection
+        int workers = Math.max(1, Integer.parseInt(getOption(args, "workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        int writers = Math.max(1, Integer.parseInt(getOption(args, "writers", "1")));
+
+        // connection pool size and idle timeout; the pool must fit every loader thread of the mode plus main
+        // (the pipeline's parents stage writes the Authors and Publishers rows on its own connection)
+        int loaderThreads = mode.equals("parallel") ? workers : mode.equals("pipeline") ? writers + 1 : 0;
+        ConnectionPool.configure(Integer.parseInt(getOption(args, "poolMin", "1")),
+                Math.max(Integer.parseInt(getOption(args, "poolMax", String.valueOf(ConnectionPool.DEFAULT_MAX))), loaderThreads + 1),
+                Long.parseLong(getOption(args, "poolIdleMillis", "60000")));
+
+        // with --shards=url1,url2,... Titles and AuthorISBN are spread over several servers by isbn
+        String shardUrls = getOption(args, "shards", null);
+        if (shardUrls != null){
+            runSharded(Arrays.asList(shardUrls.split(",")), username, password, fileName, dbTables, batchSize);
+            return;
+        }
+
+        // statement tracing and the slow-query log
+        boolean trace = Boolean.parseBoolean(getOption(args, "trace", "false"));
+        QueryTracer.configure(trace, Long.parseLong(getOption(args, "slowQueryMillis", "100")),
+                getOption(args, "slowQueryLog", null));
+
+        // with --replicas=url1,url2,... the report queries read from replicas, the writes stay on url
+        String replicaUrls = getOption(args, "replicas", "");
+        ReplicaRouter.configure(replicaUrls.isEmpty() ? Collections.emptyList() : Arrays.asList(replicaUrls.split(",")),
+                username, password, Long.parseLong(getOption(args, "maxReplicaLagSeconds", "-1")),
+                Long.parseLong(getOption(args, "lagCheckMillis", "1000")),
+                Long.parseLong(getOption(args, "readYourWritesMillis", "1000")));
+
         // connect to database
         Connection conn = getConnection(url, username, password);
 
         // drop the database tables and recreate them below
-        dropTable(conn, dbTables);
+        if (!keepTables){
+            dropTable(conn, dbTables);
+        }
 
         // create tables
         createTable(conn);
@@ -60,29 +287,10 @@ public class Book {
         // Initialize the different tables (at least 15 entries per table) appropriately
         // All fields cannot be null.
         try(
-                // open up data file
-                BufferedReader br = new BufferedReader(new FileReader(new File(fileName)));
-
-                Statement stmt = conn.createStatement();
-
-                // insert prepared statements
-                PreparedStatement insertRow_Authors = conn.prepareStatement(
-                        "INSERT INTO Authors(authorID, firstName, lastName) values(?,?,?)"
-                );  // The question marks mean that I know the query but I don't know the values
-                // The setString/ setInt methods below would fill out the values.
-                // authorID, firstName, lastName are the three attributes
-                PreparedStatement insertRow_Publishers = conn.prepareStatement(
-                        "INSERT INTO Publishers(publisherID, publisherName) values(?,?)"
-                ); // publisherID, publisherName
-                PreparedStatement insertRow_Titles = conn.prepareStatement(
-                        "INSERT INTO Titles(editionNumber, years, publisherID, price, title, isbn) values(?,?,?,?,?,?)"
-                ); // editionNumber, years, publisherID, price, title, isbn
-                PreparedStatement insertRow_AuthorISBN = conn.prepareStatement(
-                        "INSERT INTO AuthorISBN(authorID, isbn) values(?,?)"
-                ) // authorID, isbn
+                Statement stmt = conn.createStatement()
         ) {
             // clear data from tables
-            for (String tbl : dbTables){
+            for (String tbl : keepTables ? new String[0] : dbTables){
                 try{
                     // delete existing records in a table
                     // delete all rows in a table without deleting the table.
@@ -96,90 +304,69 @@ public class Book {
                 }
             }
 
-            String line;
-            while ((line = br.readLine()) != null){
-                // The test file consists of tab delimited data, split the input row.
-                String[] rowArr = line.split("\t");
-                // The row is only valid
-                // when the attribute numbers are 10
-                // i.e., authorID, firstName, lastName, publisherID, publisherName, editionNumber, years, price, title, isbn
-                if (rowArr.length != 10){
-                    continue;
-                }
-                /** get fields/values from rowArr for the Authors table */
-                int authorID = Integer.parseInt(rowArr[0]);
-                String firstName = rowArr[1];
-                String lastName = rowArr[2];
-
-                // add Authors tuple if does not exist
-                try{
-                    insertRow_Authors.setInt(1, authorID);
-                    insertRow_Authors.setString(2, firstName);
-                    insertRow_Authors.setString(3, lastName);
-                    insertRow_Authors.executeUpdate();
-                } catch(SQLException e){
-                    // tuple already exists
-//                     throw new Exception(e.getMessage());
-                }
-
-                /** get values from rowArr for the Publishers table */
-                int publisherID = Integer.parseInt(rowArr[3]);
-                String publisherName = rowArr[4];
+            listing = getOption(args, "listing", "full");
+            pageSize = Integer.parseInt(getOption(args, "pageSize", "1000"));
+            TableRenderer.configure(TableRenderer.Format.valueOf(getOption(args, "format", "fixed").toUpperCase()),
+                    getOption(args, "reportFile", null));
+            OperationMetrics.startDumps(Long.parseLong(getOption(args, "metricsInterval", "0")));
 
-                // add Publishers tuple if does not exist
-                try{
-                    insertRow_Publishers.setInt(1, publisherID);
-                    insertRow_Publishers.setString(2, publisherName);
-                    insertRow_Publishers.executeUpdate();
-                } catch(SQLException e){
-//                    System.out.println(e.getMessage());
-//                    System.err.println(String.format("Table Publishers: Already inserted publisherID %d publisherName %s", publisherID, publisherName));
-//                    throw new Exception(e.getMessage());
-                }
+            // cached query results are stale once the tables are reloaded
+            booksByPublisherCache.configure(Integer.parseInt(getOption(args, "cacheSize", "256")),
+                    Long.parseLong(getOption(args, "cacheTtlMillis", "0")));
+            booksByPublisherCache.invalidateAll();
 
-                /** get values from rowArr for the Titles table */
+            LoadStats stats = new LoadStats();
+            if (mode.equals("batch")){
+                loadBatch(conn, fileName, batchSize, checkpointFile, stats);
+            } else if (mode.equals("multirow")){
+                loadMultiRow(conn, fileName, batchSize,
+                        Integer.parseInt(getOption(args, "rowsPerStatement", "512")), stats);
+            } else if (incremental){
+                new DeltaLoader(conn, batchSize).load(fileName,
+                        getOption(args, "previous", null), getOption(args, "state", null), stats);
+            } else if (mode.equals("bulk")){
+                new BulkLoader(conn, batchSize).load(fileName,
+                        Boolean.parseBoolean(getOption(args, "compare", "false")), stats);
+            } else if (mode.equals("pipeline")){
+                new PipelineLoader(fileName, url, username, password, writers,
+                        Integer.parseInt(getOption(args, "queueSize", "16")), batchSize).load(stats);
+            } else if (mode.equals("parallel")){
+                new ParallelLoader(fileName, url, username, password, workers, batchSize).load(stats);
+            } else {
+                loadRowByRow(conn, fileName, stats);
+            }
+            stats.print(mode);
+            ReplicaRouter.loaded();
 
-                int editionNumber = Integer.parseInt(rowArr[5]);
-                String years = rowArr[6];
-                float price = Float.parseFloat(rowArr[7]);
-                String title = rowArr[8];
-                String isbn = rowArr[9];
-                // add Titles tuple if does not exist
-                try{
-                    insertRow_Titles.setInt(1, editionNumber);
-                    insertRow_Titles.setString(2, years);
-                    insertRow_Titles.setInt(3, publisherID);
-                    insertRow_Titles.setFloat(4, price);
-                    insertRow_Titles.setString(5, title);
-                    insertRow_Titles.setString(6, isbn);
-                    insertRow_Titles.executeUpdate();
-                } catch(SQLException e){
-//                    System.err.println(String.format("Table Titles: Already inserted editionName %d years %s publisherID %d price %f title %s",
-//                            editionNumber, years, publisherID, price, title));
-//                     throw new Exception(e.getMessage());
-                }
+            // check that no report query needs a full table scan
+            if (Boolean.parseBoolean(getOption(args, "verifyIndexes", "false"))){
+                SchemaIndexes.verify(conn);
+            }
 
+            // build the columnar Titles snapshot and run the analytic queries on it
+            if (Boolean.parseBoolean(getOption(args, "snapshot", "false"))){
+                titlesSnapshot = TitlesSnapshot.load(conn, Boolean.parseBoolean(getOption(args, "snapshotParallel", "false")));
+                printSnapshotReports(titlesSnapshot);
+            }
 
-                /** get values from rowArr for the AuthorISBN table */
-                // add AuthorISBN tuple if does not exist
-                try{
-                    insertRow_AuthorISBN.setInt(1, authorID);
-                    insertRow_AuthorISBN.setString(2, isbn);
-                    insertRow_AuthorISBN.executeUpdate();
-                } catch (SQLException e){
-//                    System.err.println(String.format("Table AuthorISBN: Already inserted authorID %d isbn %s",
-//                            authorID, isbn));
-//                    throw new Exception(e.getMessage());
-                }
+            // build the title search index and run a search on it
+            if (Boolean.parseBoolean(getOption(args, "search", "false"))){
+                titleIndex = TitleSearchIndex.load(conn);
+                printTitleSearch(titleIndex, getOption(args, "searchQuery", "harry potter"));
             }
 
             // The following queries
+            // With --reports=concurrent the independent queries run at the same time (see runReportsConcurrently)
+            if (getOption(args, "reports", "sequential").equals("concurrent")){
+                runReportsConcurrently(url, username, password, demoWrites);
+                return;
+            }
 
             /**
              * Select all authors from the authors table. Order the information
              * alphabetically by the author’s last name and first name
              */
-            System.out.println("========== Query 1: Order by last name and first name in ascending order =========");
+            TableRenderer.println("========== Query 1: Order by last name and first name in ascending order =========");
             orderAuthorName(stmt);
 
             /**
@@ -196,6 +383,10 @@ public class Book {
              */
             booksByPublisher(stmt, "IEEE");
 
+            if (!demoWrites){
+                return;
+            }
+
             /**
              * Add new Author named John Miller
              */
@@ -237,434 +428,7394 @@ public class Book {
             throw new Exception(e.getMessage());
         } finally{
             conn.close();
+            booksByPublisherCache.printStats();
+            ReplicaRouter.printStats();
+            ReplicaRouter.close();
+            ConnectionPool.printStats();
+            ConnectionPool.closeAll();
+            TableRenderer.closeFile();
+            OperationMetrics.stopDumps();
+            OperationMetrics.dump();
+            if (trace){
+                System.out.print(QueryTracer.topByTotalTime(Integer.parseInt(getOption(args, "traceTop", "10"))));
+            }
         }
     }
 
-    public static Connection getConnection(String url, String username, String password) throws Exception {
-        try{
-            // The connection URL for the mysql database is jdbc:mysql://localhost:3306/sys
-            // where jdbc is the API,
-            // mysql is the database,
-            // localhost is the server name on which mysql is running,
-            // we may also use IP address,
-            // 3306 is the port number and
-            // Books is the database name.
-            // We may use any database, in such case, we need to replace the Books with our database name.
-
-//            String url = "jdbc:mysql://localhost:3306/sys";
-//            String username = "root"; // The default username for the mysql database is root.
-//            String password = "Waihanc@0";
-            url = "jdbc:mysql://localhost:3306/sys";
-            username = "root"; // The default username for the mysql database is root.
-            password = "Waihanc@0";
-
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            Connection conn = DriverManager.getConnection(url, username, password); // return instance of Connection.
-            System.out.println("Connected.");
-            return conn;
-        } catch(Exception e){
-            System.out.println(e);
-            throw new Exception(e.getMessage());
-        }
-
-    }
-
     /**
-     * drops any existing tables
-     * @param conn
-     * @param dbTables
-     * @throws SQLException
+     * Run the report queries of main concurrently, each chain of steps on its own pooled connection.
+     * The read-only queries run first, then the three mutation chains (author, title, publisher),
+     * so every query sees the same data as in the sequential run. Output is printed in the original order.
+     * @param url
+     * @param username
+     * @param password
+     * @param demoWrites run the mutation chains too
+     * @throws Exception
      */
-    public static void dropTable(Connection conn, String[] dbTables) throws SQLException {
-        for (String tbl:dbTables){
-            try{
-                Statement stmt = conn.createStatement();
-                stmt.executeUpdate("drop table " + tbl);
-                System.out.println("Dropped table "+ tbl);
-            } catch (SQLException e){
-                //System.out.println("Did not drop table " + tbl);
-                System.out.println(e.getMessage());
-                throw new SQLException(e.getMessage());
-            }
+    public static void runReportsConcurrently(String url, String username, String password, boolean demoWrites) throws Exception {
+        ReportRunner runner = new ReportRunner(url, username, password);
+        runner.wave()
+                .chain().step("orderAuthorName", (conn, stmt) -> {
+                    TableRenderer.println("========== Query 1: Order by last name and first name in ascending order =========");
+                    orderAuthorName(stmt);
+                })
+                .chain().step("getAllPublisher", (conn, stmt) -> getAllPublisher(stmt))
+                .chain().step("booksByPublisher", (conn, stmt) -> booksByPublisher(stmt, "IEEE"));
+        if (!demoWrites){
+            runner.run();
+            return;
         }
+        runner.wave()
+                .chain().step("insertAuthor", (conn, stmt) -> insertAuthor(conn))
+                        .step("insertAuthorOK", (conn, stmt) -> insertAuthorOK(stmt))
+                        .step("editAuthor", (conn, stmt) -> editAuthor(conn))
+                        .step("editAuthorOK", (conn, stmt) -> editAuthorOK(stmt))
+                .chain().step("addTitle", (conn, stmt) -> addTitle(conn))
+                        .step("printTitles", (conn, stmt) -> printTitles(stmt))
+                .chain().step("addPublisher", (conn, stmt) -> addPublisher(conn))
+                        .step("addPublisherOK", (conn, stmt) -> addPublisherOK(stmt))
+                        .step("editPublishers", (conn, stmt) -> editPublishers(conn))
+                        .step("editPublisherOK", (conn, stmt) -> editPublisherOK(stmt));
+        runner.run();
     }
 
     /**
-     * createTable sets schema for each of the four tables
-     * @param conn
-     * @throws Exception
+     * load the data file into the shards and run the sharded reports on it
+     * @param urls one connection URL per shard
      */
-    public static void createTable(Connection conn) throws Exception {
-        try{
-            // create the Authors table
-            PreparedStatement createTable_Authors = conn.prepareStatement(
-                    "CREATE TABLE IF NOT EXISTS Authors(" +
-                            "authorID int NOT NULL AUTO_INCREMENT, " +
-                            "firstName varchar(20) NOT NULL," +
-                            "lastName varchar(20) NOT NULL," +
-                            "PRIMARY KEY(authorID))");
-            createTable_Authors.executeUpdate();
-            System.out.println("Entity table Authors created.");
-
-            // create the Publishers Table
-            PreparedStatement createTable_Publishers = conn.prepareStatement(
-                    "CREATE TABLE IF NOT EXISTS Publishers(" +
-                            "publisherID int NOT NULL AUTO_INCREMENT," +
-                            "publisherName CHAR (100) NOT NULL," +
-                            "PRIMARY KEY(publisherID))");
-            createTable_Publishers.executeUpdate();
-            System.out.println("Entity table Publishers created.");
-
-
-            // create the Titles table
-            PreparedStatement createTable_Titles = conn.prepareStatement(
-                    "CREATE TABLE IF NOT EXISTS Titles(" +
-                            "editionNumber int NOT NULL," +
-                            "years CHAR(4) NOT NULL," +
-                            "publisherID int NOT NULL," +
-                            "price NUMERIC (8, 2) NOT NULL," +
-                            "title varchar(500) NOT NULL," +
-                            "isbn CHAR(10) NOT NULL," +
-                            "PRIMARY KEY(isbn)," +
-                            "FOREIGN KEY(publisherID) REFERENCES Publishers(publisherID))");
-            createTable_Titles.executeUpdate();
-            System.out.println("Entity table Titles created.");
-
-
-            // create the AuthorISBN table
-            PreparedStatement createTable_AuthorISBN = conn.prepareStatement(
-                    "CREATE TABLE IF NOT EXISTS AuthorISBN(" +
-                            "authorID int NOT NULL AUTO_INCREMENT," +
-                            "isbn CHAR(10) NOT NULL," +
-                            "PRIMARY KEY(authorID, isbn)," + // authorID and isbn completely determine relation
-                            "FOREIGN KEY(authorID) REFERENCES Authors(authorID)," +
-                            "FOREIGN KEY (isbn) REFERENCES Titles(isbn))");
-            createTable_AuthorISBN.executeUpdate();
-            System.out.println("Relation table AuthorISBN created.");
-
-        } catch(SQLException e){
-            e.printStackTrace();
-            throw new Exception(e.getMessage());
+    public static void runSharded(List<String> urls, String username, String password, String fileName,
+                                  String[] dbTables, int batchSize) throws Exception {
+        try (ShardedCatalog catalog = new ShardedCatalog(urls, username, password)){
+            catalog.createTables(dbTables);
+            LoadStats stats = new LoadStats();
+            catalog.load(fileName, batchSize, stats);
+            stats.print("sharded x" + catalog.size());
+            catalog.booksByPublisher("IEEE");
+            catalog.printTitles();
+            catalog.countISBNbyPublisher();
+            catalog.avgPriceByPublisher();
+        } finally {
+            ConnectionPool.printStats();
+            ConnectionPool.closeAll();
+            OperationMetrics.dump();
         }
-
     }
 
     /**
-     * order authorname in ascending order
-     * @param stmt
-     * @throws Exception
+     * run the BooksPopulate analytic queries (articles after 2000, books by price,
+     * book count and average price by publisher) on the in-memory Titles snapshot
+     * @param snapshot
      */
-    public static void orderAuthorName(Statement stmt) throws Exception{
-        ResultSet rs;
-        try{
-            rs = stmt.executeQuery("" +
-                    "SELECT * " +
-                    "FROM Authors " +
-                    "ORDER BY LastName, firstName ASC");
-            System.out.println();
-
-            String leftAlignFormat = "| %-9s | %-12s | %-12s|%n";
-
-            System.out.format("+-----------+--------------+-------------+%n");
-            System.out.format("| authorID  | first name   | last name   |%n");
-            System.out.format("+-----------+--------------+-------------+%n");
-            while (rs.next()){
-                int authorID = rs.getInt(1);
-                String firstName = rs.getString(2);
-                String lastName = rs.getString(3);
-                System.out.format(leftAlignFormat,authorID, firstName, lastName);
-            }
-            System.out.format("+-----------+--------------+-------------+%n");
-        } catch (SQLException e) {
-            e.printStackTrace();
+    public static void printSnapshotReports(TitlesSnapshot snapshot){
+        long t0 = System.nanoTime();
+        TableRenderer.println("");
+        TableRenderer.println("=============== articles published after 2000 in table Titles (snapshot) ================");
+        for (int row : snapshot.rowsAfterYear(2000)){
+            TableRenderer.printf("Table Title: article after Year 2000 is %s (year: %d).%n", snapshot.title(row), snapshot.year(row));
         }
+        TableRenderer.println("=============== order book by price in table Titles (snapshot) ================");
+        for (int row : snapshot.orderByPrice()){
+            TableRenderer.printf("Table Title: price of article %s is %s.%n", snapshot.title(row), snapshot.price(row));
+        }
+        TableRenderer.println("=============== count the number of books by publisher in table Titles (snapshot) ================");
+        for (Map.Entry<Integer, Integer> count : snapshot.countByPublisher().entrySet()){
+            TableRenderer.printf("Table Title: Number of books by Publisher %d is %d.%n", count.getKey(), count.getValue());
+        }
+        TableRenderer.println("=============== calculate average price by each publisher (snapshot) ==================");
+        for (Map.Entry<Integer, BigDecimal> avg : snapshot.avgPriceByPublisher().entrySet()){
+            TableRenderer.printf("Average price by Publisher %d (%s): %s.%n", avg.getKey(),
+                    snapshot.publisherName(avg.getKey()), avg.getValue());
+        }
+        TableRenderer.printf("Snapshot of %d titles queried in %.3f ms.%n", snapshot.size(), (System.nanoTime() - t0) / 1e6);
     }
 
     /**
-     * find all publishers from the publisher table
+     * search the title index and print the ranked hits
+     * @param index
+     * @param query terms, prefix* / *infix* terms and "quoted phrases"; all must match
      */
-    public static void getAllPublisher(Statement stmt) throws Exception{
-        ResultSet rs = null;
-        try{
-            rs = stmt.executeQuery("" +
-                    "SELECT publisherName " +
-                    "FROM Publishers ");
-            System.out.println();
-            System.out.println("========== Query 2: find all publishers from the publisher table =========");
-
-            String leftAlignFormat = "| %-25s |%n";
-
-            System.out.format("+---------------------------+%n");
-            System.out.format("| publisherName             |%n");
-            System.out.format("+---------------------------+%n");
-            while (rs.next()){
-                String publisherName = rs.getString(1);
-                System.out.format(leftAlignFormat,publisherName);
+    public static void printTitleSearch(TitleSearchIndex index, String query){
+        long t0 = System.nanoTime();
+        List<TitleSearchIndex.Hit> hits = index.search(query, 20);
+        long elapsed = System.nanoTime() - t0;
+        try (TableRenderer table = TableRenderer.open(SEARCH_TABLE, "========== Title search: " + query + " =========")){
+            for (TitleSearchIndex.Hit hit : hits){
+                table.text(hit.title).text(hit.isbn).decimal(hit.score, 2).endRow();
             }
-            System.out.format("+---------------------------+%n");
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
+        TableRenderer.printf("%d hits from %d titles in %.3f ms%n", hits.size(), index.size(), elapsed / 1e6);
     }
 
     /**
-     * Select a specific publisher and list all books published by that publisher.
-     * Include the title, year and ISBN number. Order the information alphabetically
-     * by title
-     * @param stmt
-     * @throws Exception
+     * @param table one of the LoadStats table constants
+     * @return the loaders' insert statement for the table, or its upsert form with --upsert=true
      */
-
-
-    public static void booksByPublisher(Statement stmt, String publisher) throws Exception{
-        ResultSet rs;
-        try{
-            rs = stmt.executeQuery("" +
-                    "SELECT Titles.title, Titles.years, Titles.isbn " +
-                    "FROM Titles, Publishers " +
-                    "WHERE Titles.publisherID = Publishers.publisherID AND Publishers.publisherName = '"+ publisher +"' " +
-                    "ORDER BY Titles.title ASC");
-            System.out.println();
-            System.out.println("========== Query 3: Select a specific publisher ('IEEE' in the current query) and list all books published by that publisher.\n" +
-                    "Include the title, year and ISBN number. Order by last name and first name in ascending order =========");
-
-            String leftAlignFormat = "| %-30s | %-12s | %-12s|%n";
-
-            System.out.format("+--------------------------------+--------------+-------------+%n");
-            System.out.format("| title                          | year         | isbn        |%n");
-            System.out.format("+--------------------------------+--------------+-------------+%n");
-            while (rs.next()){
-                String title = rs.getString(1);
-                int year = rs.getInt(2);
-                int isbn = rs.getInt(3);
-                System.out.format(leftAlignFormat,title, year, isbn);
-            }
-            System.out.format("+--------------------------------+--------------+-------------+%n");
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    static String insertSql(int table){
+        return upsert ? upsertSql(INSERT_SQL[table], table) : INSERT_SQL[table];
     }
 
     /**
-     * Add new Author name John miller
-     * @param conn
+     * turn an INSERT into an upsert: INSERT IGNORE for AuthorISBN, ON DUPLICATE KEY UPDATE for the others
      */
-    public static void insertAuthor(Connection conn){
-        final String first = "John";
-        final String last = "Miller";
-        try{
-            PreparedStatement posted = conn.prepareStatement("INSERT INTO Authors(firstName, lastName) " +
-                    "values ('" + first + "','" + last + "')"); // single quote for string
-            posted.executeUpdate();
-        } catch(Exception e){
-            System.out.println(e);
-        } finally{
-            System.out.println();
-        }
+    static String upsertSql(String insert, int table){
+        return table == LoadStats.AUTHOR_ISBN
+                ? insert.replaceFirst("^INSERT INTO", "INSERT IGNORE INTO")
+                : insert + UPSERT_SUFFIX[table];
     }
 
     /**
-     * check if adding author John Miller is successful.
-     * @param stmt
-     * @throws Exception
+     * look up an optional --name=value argument after the four required arguments
+     * @param args command line arguments
+     * @param name option name without the leading dashes
+     * @param defaultValue value returned when the option is not given
+     * @return the option value
      */
-    public static void insertAuthorOK(Statement stmt) throws Exception{
-        ResultSet rs;
-        try{
-            rs = stmt.executeQuery("" +
-                    "SELECT * " +
-                    "FROM Authors " +
-                    "WHERE authorID = 37 AND firstName = 'John' AND lastName = 'Miller' ;");
-            System.out.println();
-            while (rs.next()){
-                System.out.println("========== Query 4: New Author inserted: [Author ID: +" + rs.getInt(1) +
-                        ", first name: " + rs.getString(2) +
-                        ", last name: " + rs.getString(3) +
-                        "] =========");
+    public static String getOption(String[] args, String name, String defaultValue){
+        String prefix = "--" + name + "=";
+        for (int i = 4; i < args.length; i++){
+            if (args[i].startsWith(prefix)){
+                return args[i].substring(prefix.length());
             }
-
-            orderAuthorName(stmt);
-
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
+        return defaultValue;
     }
 
     /**
-     * Edit/Update the existing information about an author
+     * load the data file one row at a time: every line costs one executeUpdate per table.
+     * A failed insert means the tuple already exists.
+     * @param conn
+     * @param fileName
+     * @param stats per-table row counts and timings
+     * @throws IOException
+     * @throws SQLException
      */
-    public static void editAuthor(Connection conn){
-        try{
-            PreparedStatement posted1 = conn.prepareStatement("UPDATE Authors, AuthorISBN " +
-                    "SET Authors.firstName = 'Mary', Authors.lastName = 'Johnson' " +
-                    "WHERE Authors.authorID = 37 AND Authors.firstName = 'John' AND lastName = 'Miller' ;"); // single quote for string
-            posted1.executeUpdate();
+    public static void loadRowByRow(Connection conn, String fileName, LoadStats stats) throws IOException, SQLException {
+        try(
+                // open up data file
+                BufferedReader br = new BufferedReader(new FileReader(new File(fileName)));
+
+                // insert prepared statements
+                PreparedStatement insertRow_Authors = conn.prepareStatement(
+                        insertSql(LoadStats.AUTHORS)
+                );  // The question marks mean that I know the query but I don't know the values
+                // The setString/ setInt methods below would fill out the values.
+                // authorID, firstName, lastName are the three attributes
+                PreparedStatement insertRow_Publishers = conn.prepareStatement(
+                        insertSql(LoadStats.PUBLISHERS)
+                ); // publisherID, publisherName
+                PreparedStatement insertRow_Titles = conn.prepareStatement(
+                        insertSql(LoadStats.TITLES)
+                ); // editionNumber, years, publisherID, price, title, isbn
+                PreparedStatement insertRow_AuthorISBN = conn.prepareStatement(
+                        insertSql(LoadStats.AUTHOR_ISBN)
+                ) // authorID, isbn
+        ) {
+            DedupRegistry registry = new DedupRegistry();
+            stats.start();
+            String line;
+            while ((line = br.readLine()) != null){
+                // The test file consists of tab delimited data, split the input row.
+                String[] rowArr = line.split("\t");
+                // The row is only valid
+                // when the attribute numbers are 10
+                // i.e., authorID, firstName, lastName, publisherID, publisherName, editionNumber, years, price, title, isbn
+                if (rowArr.length != 10){
+                    continue;
+                }
+                stats.lines++;
+                /** get fields/values from rowArr for the Authors table */
+                int authorID = Integer.parseInt(rowArr[0]);
+                String firstName = rowArr[1];
+                String lastName = rowArr[2];
+
+                // add Authors tuple if does not exist
+                if (registry.addAuthor(authorID)){
+                    long t0 = System.nanoTime();
+                    try{
+                        insertRow_Authors.setInt(1, authorID);
+                        insertRow_Authors.setString(2, firstName);
+                        insertRow_Authors.setString(3, lastName);
+                        stats.record(LoadStats.AUTHORS, countWritten(insertRow_Authors.executeUpdate(), 1), System.nanoTime() - t0);
+                    } catch(SQLException e){
+                        // tuple already exists
+                        stats.record(LoadStats.AUTHORS, 0, System.nanoTime() - t0);
+                    }
+                } else {
+                    stats.skip(LoadStats.AUTHORS);
+                }
+
+                /** get values from rowArr for the Publishers table */
+                int publisherID = Integer.parseInt(rowArr[3]);
+                String publisherName = rowArr[4];
+
+                // add Publishers tuple if does not exist
+                if (registry.addPublisher(publisherID)){
+                    long t0 = System.nanoTime();
+                    try{
+                        insertRow_Publishers.setInt(1, publisherID);
+                        insertRow_Publishers.setString(2, publisherName);
+                        stats.record(LoadStats.PUBLISHERS, countWritten(insertRow_Publishers.executeUpdate(), 1), System.nanoTime() - t0);
+                    } catch(SQLException e){
+                        stats.record(LoadStats.PUBLISHERS, 0, System.nanoTime() - t0);
+                    }
+                } else {
+                    stats.skip(LoadStats.PUBLISHERS);
+                }
+
+                /** get values from rowArr for the Titles table */
+
+                int editionNumber = Integer.parseInt(rowArr[5]);
+                String years = rowArr[6];
+                float price = Float.parseFloat(rowArr[7]);
+                String title = rowArr[8];
+                String isbn = rowArr[9];
+                // add Titles tuple if does not exist
+                if (registry.addTitle(isbn)){
+                    long t0 = System.nanoTime();
+                    try{
+                        insertRow_Titles.setInt(1, editionNumber);
+                        insertRow_Titles.setString(2, years);
+                        insertRow_Titles.setInt(3, publisherID);
+                        insertRow_Titles.setFloat(4, price);
+                        insertRow_Titles.setString(5, title);
+                        insertRow_Titles.setString(6, isbn);
+                        stats.record(LoadStats.TITLES, countWritten(insertRow_Titles.executeUpdate(), 1), System.nanoTime() - t0);
+                    } catch(SQLException e){
+                        stats.record(LoadStats.TITLES, 0, System.nanoTime() - t0);
+                    }
+                } else {
+                    stats.skip(LoadStats.TITLES);
+                }
+
+
+                /** get values from rowArr for the AuthorISBN table */
+                // add AuthorISBN tuple if does not exist
+                if (registry.addAuthorISBN(authorID, isbn)){
+                    long t0 = System.nanoTime();
+                    try{
+                        insertRow_AuthorISBN.setInt(1, authorID);
+                        insertRow_AuthorISBN.setString(2, isbn);
+                        stats.record(LoadStats.AUTHOR_ISBN, countWritten(insertRow_AuthorISBN.executeUpdate(), 1), System.nanoTime() - t0);
+                    } catch (SQLException e){
+                        stats.record(LoadStats.AUTHOR_ISBN, 0, System.nanoTime() - t0);
+                    }
+                } else {
+                    stats.skip(LoadStats.AUTHOR_ISBN);
+                }
+            }
+            stats.stop();
+        }
+    }
+
+    /**
+     * load the data file in batches: rows are buffered with addBatch and sent with executeBatch
+     * every batchSize lines. Autocommit is turned off and each batch is committed once.
+     * Batches are flushed in foreign key order (Authors, Publishers, Titles, AuthorISBN).
+     * Only keys that the DedupRegistry has not seen are added to a batch.
+     *
+     * With a checkpoint file, the byte offset after each committed batch is recorded there.
+     * If the file exists when the load starts, the load resumes from that offset; the keys of the
+     * rows before it are replayed into the DedupRegistry without touching the database.
+     * The checkpoint file is removed when the load completes.
+     * @param conn
+     * @param fileName
+     * @param batchSize number of data lines per batch (and per transaction)
+     * @param checkpointFile checkpoint file path, or null
+     * @param stats per-table row counts and timings
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static void loadBatch(Connection conn, String fileName, int batchSize, String checkpointFile, LoadStats stats)
+            throws IOException, SQLException {
+        LoadCheckpoint checkpoint = checkpointFile == null ? null : LoadCheckpoint.open(Paths.get(checkpointFile));
+        DedupRegistry registry = new DedupRegistry();
+        long startOffset = 0;
+        if (checkpoint != null && checkpoint.offset > 0){
+            startOffset = checkpoint.offset;
+            replayKeys(fileName, startOffset, registry);
+            System.out.println("Resuming load at byte " + startOffset + " after chunk " + checkpoint.chunk + ".");
+        }
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try(
+                BookDataParser parser = new BookDataParser(fileName, startOffset, -1, BookDataParser.DEFAULT_WINDOW);
+                PreparedStatement insertRow_Authors = conn.prepareStatement(insertSql(LoadStats.AUTHORS));
+                PreparedStatement insertRow_Publishers = conn.prepareStatement(insertSql(LoadStats.PUBLISHERS));
+                PreparedStatement insertRow_Titles = conn.prepareStatement(insertSql(LoadStats.TITLES));
+                PreparedStatement insertRow_AuthorISBN = conn.prepareStatement(
+                        insertSql(LoadStats.AUTHOR_ISBN))
+        ) {
+            PreparedStatement[] batches = {insertRow_Authors, insertRow_Publishers, insertRow_Titles, insertRow_AuthorISBN};
+            stats.start();
+            int pending = 0;
+            while (parser.next()){
+                stats.lines++;
+                int authorID = parser.authorID();
+                int publisherID = parser.publisherID();
+                String isbn = parser.isbn();
+
+                if (registry.addAuthor(authorID)){
+                    insertRow_Authors.setInt(1, authorID);
+                    insertRow_Authors.setString(2, parser.firstName());
+                    insertRow_Authors.setString(3, parser.lastName());
+                    insertRow_Authors.addBatch();
+                } else {
+                    stats.skip(LoadStats.AUTHORS);
+                }
+
+                if (registry.addPublisher(publisherID)){
+                    insertRow_Publishers.setInt(1, publisherID);
+                    insertRow_Publishers.setString(2, parser.publisherName());
+                    insertRow_Publishers.addBatch();
+                } else {
+                    stats.skip(LoadStats.PUBLISHERS);
+                }
+
+                if (registry.addTitle(isbn)){
+                    insertRow_Titles.setInt(1, parser.editionNumber());
+                    insertRow_Titles.setString(2, parser.years());
+                    insertRow_Titles.setInt(3, publisherID);
+                    insertRow_Titles.setFloat(4, parser.price());
+                    insertRow_Titles.setString(5, parser.title());
+                    insertRow_Titles.setString(6, isbn);
+                    insertRow_Titles.addBatch();
+                } else {
+                    stats.skip(LoadStats.TITLES);
+                }
+
+                if (registry.addAuthorISBN(authorID, isbn)){
+                    insertRow_AuthorISBN.setInt(1, authorID);
+                    insertRow_AuthorISBN.setString(2, isbn);
+                    insertRow_AuthorISBN.addBatch();
+                } else {
+                    stats.skip(LoadStats.AUTHOR_ISBN);
+                }
+
+                if (++pending == batchSize){
+                    flushBatches(conn, batches, stats);
+                    pending = 0;
+                    if (checkpoint != null){
+                        checkpoint.save(parser.position());
+                    }
+                }
+            }
+            if (pending > 0){
+                flushBatches(conn, batches, stats);
+            }
+            if (checkpoint != null){
+                checkpoint.delete();
+            }
+            stats.stop();
+        } finally{
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * add the keys of every row before end to the registry, as if they had been loaded
+     * @param fileName
+     * @param end byte offset where the replay stops
+     * @param registry
+     * @throws IOException
+     */
+    static void replayKeys(String fileName, long end, DedupRegistry registry) throws IOException {
+        try (BookDataParser parser = new BookDataParser(fileName, 0, end, BookDataParser.DEFAULT_WINDOW)){
+            while (parser.next()){
+                String isbn = parser.isbn();
+                registry.addAuthor(parser.authorID());
+                registry.addPublisher(parser.publisherID());
+                registry.addTitle(isbn);
+                registry.addAuthorISBN(parser.authorID(), isbn);
+            }
+        }
+    }
+
+    /**
+     * send the buffered rows of every table in foreign key order and commit them as one transaction.
+     * Rows rejected as duplicates are skipped; the rest of the batch is still committed.
+     * @param conn
+     * @param batches prepared statements indexed by the LoadStats table constants
+     * @param stats
+     * @throws SQLException
+     */
+    public static void flushBatches(Connection conn, PreparedStatement[] batches, LoadStats stats) throws SQLException {
+        for (int table = 0; table < batches.length; table++){
+            long t0 = System.nanoTime();
+            int[] counts;
+            try{
+                counts = batches[table].executeBatch();
+            } catch (BatchUpdateException e){
+                // some tuples already exist
+                counts = e.getUpdateCounts();
+            }
+            stats.record(table, countInserted(counts), System.nanoTime() - t0);
+        }
+        long t0 = System.nanoTime();
+        conn.commit();
+        stats.commit(System.nanoTime() - t0);
+    }
+
+    /**
+     * load the data file with multi-row INSERT ... VALUES (...),(...) statements.
+     * Rows are buffered per table and sent in statements of up to rowsPerStatement rows,
+     * kept under max_allowed_packet; every batchSize lines (or when a buffer is full)
+     * all four tables are flushed in foreign key order and committed.
+     * @param conn
+     * @param fileName
+     * @param batchSize number of data lines per transaction
+     * @param rowsPerStatement largest number of rows in one INSERT
+     * @param stats per-table row counts and timings
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static void loadMultiRow(Connection conn, String fileName, int batchSize, int rowsPerStatement, LoadStats stats)
+            throws IOException, SQLException {
+        DedupRegistry registry = new DedupRegistry();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try(
+                BookDataParser parser = new BookDataParser(fileName);
+                MultiRowInsert insert = new MultiRowInsert(conn, rowsPerStatement, stats)
+        ) {
+            stats.start();
+            int pending = 0;
+            while (parser.next()){
+                stats.lines++;
+                int authorID = parser.authorID();
+                int publisherID = parser.publisherID();
+                String isbn = parser.isbn();
+
+                if (registry.addAuthor(authorID)){
+                    insert.add(LoadStats.AUTHORS, authorID, parser.firstName(), parser.lastName());
+                } else {
+                    stats.skip(LoadStats.AUTHORS);
+                }
+                if (registry.addPublisher(publisherID)){
+                    insert.add(LoadStats.PUBLISHERS, publisherID, parser.publisherName());
+                } else {
+                    stats.skip(LoadStats.PUBLISHERS);
+                }
+                if (registry.addTitle(isbn)){
+                    insert.add(LoadStats.TITLES, parser.editionNumber(), parser.years(), publisherID,
+                            parser.price(), parser.title(), isbn);
+                } else {
+                    stats.skip(LoadStats.TITLES);
+                }
+                if (registry.addAuthorISBN(authorID, isbn)){
+                    insert.add(LoadStats.AUTHOR_ISBN, authorID, isbn);
+                } else {
+                    stats.skip(LoadStats.AUTHOR_ISBN);
+                }
+
+                if (++pending == batchSize){
+                    insert.flush();
+                    pending = 0;
+                }
+            }
+            insert.flush();
+            stats.stop();
+        } finally{
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * count the rows actually inserted by a batch; with --upsert every row that did not fail counts once
+     * @param counts update counts returned by executeBatch
+     * @return number of inserted rows
+     */
+    static int countInserted(int[] counts){
+        int inserted = 0;
+        for (int count : counts){
+            if (count == Statement.SUCCESS_NO_INFO || upsert && count >= 0){
+                inserted++;
+            } else if (count > 0){
+                inserted += count;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * rows written by one statement of rows rows: its update count, or with --upsert every row once,
+     * since MySQL counts an updated row as 2 affected rows and an unchanged one as 0 or 1
+     */
+    static int countWritten(int affected, int rows){
+        return upsert ? rows : affected;
+    }
+
+    /**
+     * borrow a connection to the database from the connection pool
+     * @param url connection URL from the command line
+     * @param username
+     * @param password
+     * @return a pooled connection; close it to return it to the pool
+     * @throws Exception
+     */
+    public static Connection getConnection(String url, String username, String password) throws Exception {
+        try{
+            // The connection URL for the mysql database is jdbc:mysql://localhost:3306/sys
+            // where jdbc is the API,
+            // mysql is the database,
+            // localhost is the server name on which mysql is running,
+            // we may also use IP address,
+            // 3306 is the port number and
+            // Books is the database name.
+            // We may use any database, in such case, we need to replace the Books with our database name.
+
+            // Connections come from a pool per url and username; closing one gives it back to the pool.
+            Connection conn = ConnectionPool.get(url, username, password).borrow();
+            return QueryTracer.enabled ? QueryTracer.wrap(conn) : conn;
+        } catch(Exception e){
+            System.out.println(e);
+            throw new Exception(e.getMessage());
+        }
+
+    }
+
+    /**
+     * drops any existing tables
+     * @param conn
+     * @param dbTables
+     * @throws SQLException
+     */
+    public static void dropTable(Connection conn, String[] dbTables) throws SQLException {
+        for (String tbl:dbTables){
+            try{
+                Statement stmt = conn.createStatement();
+                stmt.executeUpdate("drop table " + tbl);
+                System.out.println("Dropped table "+ tbl);
+            } catch (SQLException e){
+                //System.out.println("Did not drop table " + tbl);
+                System.out.println(e.getMessage());
+                throw new SQLException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * createTable sets schema for each of the four tables
+     * @param conn
+     * @throws Exception
+     */
+    public static void createTable(Connection conn) throws Exception {
+        try{
+            // create the Authors table
+            PreparedStatement createTable_Authors = conn.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS Authors(" +
+                            "authorID int NOT NULL AUTO_INCREMENT, " +
+                            "firstName varchar(20) NOT NULL," +
+                            "lastName varchar(20) NOT NULL," +
+                            "PRIMARY KEY(authorID))");
+            createTable_Authors.executeUpdate();
+            System.out.println("Entity table Authors created.");
+
+            // create the Publishers Table
+            PreparedStatement createTable_Publishers = conn.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS Publishers(" +
+                            "publisherID int NOT NULL AUTO_INCREMENT," +
+                            "publisherName CHAR (100) NOT NULL," +
+                            "PRIMARY KEY(publisherID))");
+            createTable_Publishers.executeUpdate();
+            System.out.println("Entity table Publishers created.");
+
+
+            // create the Titles table
+            PreparedStatement createTable_Titles = conn.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS Titles(" +
+                            "editionNumber int NOT NULL," +
+                            "years CHAR(4) NOT NULL," +
+                            "publisherID int NOT NULL," +
+                            "price NUMERIC (8, 2) NOT NULL," +
+                            "title varchar(500) NOT NULL," +
+                            "isbn CHAR(10) NOT NULL," +
+                            "PRIMARY KEY(isbn)," +
+                            "FOREIGN KEY(publisherID) REFERENCES Publishers(publisherID))");
+            createTable_Titles.executeUpdate();
+            System.out.println("Entity table Titles created.");
+
+
+            // create the AuthorISBN table
+            PreparedStatement createTable_AuthorISBN = conn.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS AuthorISBN(" +
+                            "authorID int NOT NULL AUTO_INCREMENT," +
+                            "isbn CHAR(10) NOT NULL," +
+                            "PRIMARY KEY(authorID, isbn)," + // authorID and isbn completely determine relation
+                            "FOREIGN KEY(authorID) REFERENCES Authors(authorID)," +
+                            "FOREIGN KEY (isbn) REFERENCES Titles(isbn))");
+            createTable_AuthorISBN.executeUpdate();
+            System.out.println("Relation table AuthorISBN created.");
+
+            // secondary indexes for the report queries
+            SchemaIndexes.create(conn);
+
+        } catch(SQLException e){
+            e.printStackTrace();
+            throw new Exception(e.getMessage());
+        }
+
+    }
+
+    /**
+     * order authorname in ascending order
+     * @param stmt
+     * @throws Exception
+     */
+    public static void orderAuthorName(Statement stmt) throws Exception{
+        if (listing.equals("paged")){
+            try (ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection())){
+                orderAuthorNamePaged(read.conn, pageSize);
+            }
+            return;
+        }
+        if (listing.equals("stream")){
+            try (ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection())){
+                orderAuthorNameStreaming(read.conn, pageSize);
+            }
+            return;
+        }
+        long t0 = System.nanoTime();
+        try(ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection());
+            ResultSet rs = StatementCache.of(read.conn).executeQuery(ORDER_AUTHOR_NAME_SQL)){
+            try (TableRenderer table = TableRenderer.open(AUTHORS_TABLE, null)){
+                while (rs.next()){
+                    int authorID = rs.getInt(1);
+                    String firstName = rs.getString(2);
+                    String lastName = rs.getString(3);
+                    table.number(authorID).text(firstName).text(lastName).endRow();
+                }
+            }
+        } catch (SQLException e) {
+            OperationMetrics.ORDER_AUTHOR_NAME.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.ORDER_AUTHOR_NAME.recordSince(t0);
+    }
+
+    /**
+     * orderAuthorName one keyset page at a time; each page seeks past the (lastName, firstName, authorID)
+     * of the previous page, so every page costs the same and only one page is held in memory
+     * @param conn
+     * @param pageSize rows per page
+     * @throws Exception
+     */
+    public static void orderAuthorNamePaged(Connection conn, int pageSize) throws Exception{
+        long t0 = System.nanoTime();
+        try {
+            try (TableRenderer table = TableRenderer.open(AUTHORS_TABLE, null)){
+                int authorID = 0;
+                String firstName = null;
+                String lastName = null;
+                int rows;
+                do {
+                    rows = 0;
+                    try (ResultSet rs = lastName == null
+                            ? StatementCache.of(conn).executeQuery(AUTHORS_FIRST_PAGE_SQL, pageSize)
+                            : StatementCache.of(conn).executeQuery(AUTHORS_NEXT_PAGE_SQL, lastName, firstName, authorID, pageSize)){
+                        while (rs.next()){
+                            authorID = rs.getInt(1);
+                            firstName = rs.getString(2);
+                            lastName = rs.getString(3);
+                            table.number(authorID).text(firstName).text(lastName).endRow();
+                            rows++;
+                        }
+                    }
+                } while (rows == pageSize);
+            }
+        } catch (SQLException e) {
+            OperationMetrics.ORDER_AUTHOR_NAME.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.ORDER_AUTHOR_NAME.recordSince(t0);
+    }
+
+    /**
+     * orderAuthorName in one query whose rows are streamed from the server instead of buffered
+     * @param conn
+     * @param fetchSize rows per round trip with useCursorFetch=true in the URL
+     * @throws Exception
+     */
+    public static void orderAuthorNameStreaming(Connection conn, int fetchSize) throws Exception{
+        long t0 = System.nanoTime();
+        try (PreparedStatement ps = prepareStreaming(conn, ORDER_AUTHOR_NAME_SQL, fetchSize);
+             ResultSet rs = ps.executeQuery()){
+            try (TableRenderer table = TableRenderer.open(AUTHORS_TABLE, null)){
+                while (rs.next()){
+                    int authorID = rs.getInt(1);
+                    String firstName = rs.getString(2);
+                    String lastName = rs.getString(3);
+                    table.number(authorID).text(firstName).text(lastName).endRow();
+                }
+            }
+        } catch (SQLException e) {
+            OperationMetrics.ORDER_AUTHOR_NAME.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.ORDER_AUTHOR_NAME.recordSince(t0);
+    }
+
+    /**
+     * a forward-only statement whose result is not buffered by the driver.
+     * With useCursorFetch=true in the URL the server keeps a cursor and sends fetchSize rows per
+     * round trip; otherwise Connector/J streams the rows one at a time (fetch size Integer.MIN_VALUE).
+     * Either way the connection is busy until the ResultSet is closed.
+     */
+    static PreparedStatement prepareStreaming(Connection conn, String sql, int fetchSize) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        String url = conn.getMetaData().getURL();
+        ps.setFetchSize(url != null && url.contains("useCursorFetch=true") ? fetchSize : Integer.MIN_VALUE);
+        return ps;
+    }
+
+    /**
+     * find all publishers from the publisher table
+     */
+    public static void getAllPublisher(Statement stmt) throws Exception{
+        long t0 = System.nanoTime();
+        try(ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection());
+            ResultSet rs = StatementCache.of(read.conn).executeQuery(ALL_PUBLISHERS_SQL)){
+            try (TableRenderer table = TableRenderer.open(PUBLISHERS_TABLE,
+                    "========== Query 2: find all publishers from the publisher table =========")){
+                while (rs.next()){
+                    String publisherName = rs.getString(1);
+                    table.text(publisherName).endRow();
+                }
+            }
+        } catch (SQLException e) {
+            OperationMetrics.GET_ALL_PUBLISHER.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.GET_ALL_PUBLISHER.recordSince(t0);
+    }
+
+    /**
+     * Select a specific publisher and list all books published by that publisher.
+     * Include the title, year and ISBN number. Order the information alphabetically
+     * by title
+     * @param stmt
+     * @throws Exception
+     */
+
+
+    public static void booksByPublisher(Statement stmt, String publisher) throws Exception{
+        long t0 = System.nanoTime();
+        try(ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection())){
+            // read through the cache; a miss runs the join on a replica or the primary
+            List<Object[]> books = booksByPublisherCache.get(read.conn, publisher);
+            try (TableRenderer table = TableRenderer.open(BOOKS_BY_PUBLISHER_TABLE,
+                    "========== Query 3: Select a specific publisher ('IEEE' in the current query) and list all books published by that publisher.\n" +
+                    "Include the title, year and ISBN number. Order by last name and first name in ascending order =========")){
+                for (Object[] book : books){
+                    // title, year, isbn
+                    table.text((String) book[0]).number((Integer) book[1]).text((String) book[2]).endRow();
+                }
+            }
+        } catch (SQLException e) {
+            OperationMetrics.BOOKS_BY_PUBLISHER.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.BOOKS_BY_PUBLISHER.recordSince(t0);
+    }
+
+    /**
+     * Add new Author name John miller
+     * @param conn
+     */
+    public static void insertAuthor(Connection conn){
+        long t0 = System.nanoTime();
+        final String first = "John";
+        final String last = "Miller";
+        try{
+            PreparedStatement posted = StatementCache.of(conn).prepare("INSERT INTO Authors(firstName, lastName) " +
+                    "values (?,?)");
+            posted.setString(1, first);
+            posted.setString(2, last);
+            posted.executeUpdate();
+        } catch(Exception e){
+            OperationMetrics.INSERT_AUTHOR.error();
+            System.out.println(e);
+        } finally{
+            System.out.println();
+        }
+        ReplicaRouter.wrote();
+        OperationMetrics.INSERT_AUTHOR.recordSince(t0);
+    }
+
+    /**
+     * check if adding author John Miller is successful.
+     * @param stmt
+     * @throws Exception
+     */
+    public static void insertAuthorOK(Statement stmt) throws Exception{
+        long t0 = System.nanoTime();
+        try(ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection());
+            ResultSet rs = StatementCache.of(read.conn).executeQuery("" +
+                        "SELECT * " +
+                        "FROM Authors " +
+                        "WHERE authorID = 37 AND firstName = 'John' AND lastName = 'Miller' ;")){
+            TableRenderer.println("");
+            while (rs.next()){
+                TableRenderer.println("========== Query 4: New Author inserted: [Author ID: +" + rs.getInt(1) +
+                        ", first name: " + rs.getString(2) +
+                        ", last name: " + rs.getString(3) +
+                        "] =========");
+            }
+        } catch (SQLException e) {
+            OperationMetrics.INSERT_AUTHOR_OK.error();
+            e.printStackTrace();
+        }
+        // the listing records its own latency
+        OperationMetrics.INSERT_AUTHOR_OK.recordSince(t0);
+        orderAuthorName(stmt);
+    }
+
+    /**
+     * Edit/Update the existing information about an author
+     */
+    public static void editAuthor(Connection conn){
+        long t0 = System.nanoTime();
+        try{
+            PreparedStatement posted1 = StatementCache.of(conn).prepare("UPDATE Authors, AuthorISBN " +
+                    "SET Authors.firstName = 'Mary', Authors.lastName = 'Johnson' " +
+                    "WHERE Authors.authorID = 37 AND Authors.firstName = 'John' AND lastName = 'Miller' ;"); // single quote for string
+            posted1.executeUpdate();
+
+        } catch(Exception e){
+            OperationMetrics.EDIT_AUTHOR.error();
+            System.out.println(e);
+        } finally{
+        }
+        ReplicaRouter.wrote();
+        OperationMetrics.EDIT_AUTHOR.recordSince(t0);
+    }
+
+    /**
+     * check if changing John Miller into Mary Johnson is successful.
+     * @param stmt
+     * @throws Exception
+     */
+    public static void editAuthorOK(Statement stmt) throws Exception{
+        long t0 = System.nanoTime();
+        try(ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection());
+            ResultSet rs = StatementCache.of(read.conn).executeQuery("" +
+                        "SELECT * " +
+                        "FROM Authors " +
+                        "WHERE authorID = 37 ;")){
+            TableRenderer.println("");
+            if (rs.next()){
+                TableRenderer.println("========== Query 5: Edit author name: Change John Miller into Mary Johnson. \n" +
+                        "Result after edits: [Author ID: +" + rs.getInt(1) +
+                        ", first name is Mary: " + rs.getString(2).equals("Mary") +
+                        ", last name is Johnson: " + rs.getString(3).equals("Johnson") +
+                        "] ========= \n");
+            }
+        } catch (SQLException e) {
+            OperationMetrics.EDIT_AUTHOR_OK.error();
+            e.printStackTrace();
+        }
+        // the listing records its own latency
+        OperationMetrics.EDIT_AUTHOR_OK.recordSince(t0);
+        orderAuthorName(stmt);
+    }
+
+    /**
+     * add an title to the Titles table
+     * @param conn
+     */
+    public static void addTitle(Connection conn){
+        long t0 = System.nanoTime();
+        try{
+            PreparedStatement insertRow_Titles = StatementCache.of(conn).prepare(
+                    "INSERT INTO Titles(editionNumber, years, publisherID, price, title, isbn) values(?,?,?,?,?,?)"
+            );
+
+            insertRow_Titles.setInt(1, 1);
+            insertRow_Titles.setString(2, "1993");
+            insertRow_Titles.setInt(3, 5);
+            insertRow_Titles.setFloat(4, 55);
+            insertRow_Titles.setString(5, "Marching Band");
+            insertRow_Titles.setString(6, "12345678");
+            insertRow_Titles.executeUpdate();
+            booksByPublisherCache.invalidatePublisherID(5);
+            if (titlesSnapshot != null){
+                titlesSnapshot.upsertTitle("12345678", 1, "1993", 5, new BigDecimal("55.00"), "Marching Band");
+            }
+            if (titleIndex != null){
+                titleIndex.add("12345678", "Marching Band");
+            }
+        } catch (SQLException e) {
+            OperationMetrics.ADD_TITLE.error();
+            e.printStackTrace();
+        }
+        ReplicaRouter.wrote();
+        OperationMetrics.ADD_TITLE.recordSince(t0);
+    }
+
+    public static void printTitles(Statement stmt) throws Exception{
+        if (listing.equals("paged")){
+            try (ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection())){
+                printTitlesPaged(read.conn, pageSize);
+            }
+            return;
+        }
+        if (listing.equals("stream")){
+            try (ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection())){
+                printTitlesStreaming(read.conn, pageSize);
+            }
+            return;
+        }
+        long t0 = System.nanoTime();
+        try(ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection());
+            ResultSet rs = StatementCache.of(read.conn).executeQuery(PRINT_TITLES_SQL)){
+            try (TableRenderer table = TableRenderer.open(TITLES_TABLE,
+                    "========== Query 6: Print Titles table (3 columns only: title, year, isbn)." +
+                    "Order by last name and first name in ascending order =========")){
+                while (rs.next()){
+                    String title = rs.getString(1);
+                    int year = rs.getInt(2);
+                    String isbn = rs.getString(3);
+                    table.text(title).number(year).text(isbn).endRow();
+                }
+            }
+        } catch (SQLException e) {
+            OperationMetrics.PRINT_TITLES.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.PRINT_TITLES.recordSince(t0);
+    }
+
+    /**
+     * printTitles one keyset page at a time, seeking past the (title, isbn) of the previous page
+     * @param conn
+     * @param pageSize rows per page
+     * @throws Exception
+     */
+    public static void printTitlesPaged(Connection conn, int pageSize) throws Exception{
+        long t0 = System.nanoTime();
+        try {
+            try (TableRenderer table = TableRenderer.open(TITLES_TABLE,
+                    "========== Query 6: Print Titles table (3 columns only: title, year, isbn)." +
+                    "Order by last name and first name in ascending order =========")){
+                String title = null;
+                String isbn = null;
+                int rows;
+                do {
+                    rows = 0;
+                    try (ResultSet rs = title == null
+                            ? StatementCache.of(conn).executeQuery(TITLES_FIRST_PAGE_SQL, pageSize)
+                            : StatementCache.of(conn).executeQuery(TITLES_NEXT_PAGE_SQL, title, isbn, pageSize)){
+                        while (rs.next()){
+                            title = rs.getString(1);
+                            int year = rs.getInt(2);
+                            isbn = rs.getString(3);
+                            table.text(title).number(year).text(isbn).endRow();
+                            rows++;
+                        }
+                    }
+                } while (rows == pageSize);
+            }
+        } catch (SQLException e) {
+            OperationMetrics.PRINT_TITLES.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.PRINT_TITLES.recordSince(t0);
+    }
+
+    /**
+     * printTitles in one query whose rows are streamed from the server instead of buffered
+     * @param conn
+     * @param fetchSize rows per round trip with useCursorFetch=true in the URL
+     * @throws Exception
+     */
+    public static void printTitlesStreaming(Connection conn, int fetchSize) throws Exception{
+        long t0 = System.nanoTime();
+        try (PreparedStatement ps = prepareStreaming(conn, PRINT_TITLES_SQL, fetchSize);
+             ResultSet rs = ps.executeQuery()){
+            try (TableRenderer table = TableRenderer.open(TITLES_TABLE,
+                    "========== Query 6: Print Titles table (3 columns only: title, year, isbn)." +
+                    "Order by last name and first name in ascending order =========")){
+                while (rs.next()){
+                    String title = rs.getString(1);
+                    int year = rs.getInt(2);
+                    String isbn = rs.getString(3);
+                    table.text(title).number(year).text(isbn).endRow();
+                }
+            }
+        } catch (SQLException e) {
+            OperationMetrics.PRINT_TITLES.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.PRINT_TITLES.recordSince(t0);
+    }
+
+
+    /**
+     * add a publisher into Publishers table
+     * @param conn
+     */
+    public static void addPublisher(Connection conn){
+        long t0 = System.nanoTime();
+        String publisherName = "Johnson";
+        try{
+
+            PreparedStatement post = StatementCache.of(conn).prepare(
+                    "INSERT INTO Publishers(publisherName) values(?)"
+            );
+            post.setString(1, publisherName);
+            post.executeUpdate();
+            booksByPublisherCache.invalidate(publisherName);
+            if (titlesSnapshot != null){
+                titlesSnapshot.refreshPublishers(conn);
+            }
+        } catch (SQLException e) {
+            OperationMetrics.ADD_PUBLISHER.error();
+            e.printStackTrace();
+        }
+        ReplicaRouter.wrote();
+        OperationMetrics.ADD_PUBLISHER.recordSince(t0);
+    }
+
+    /**
+     * check if adding a publisher is successful.
+     * @param stmt
+     * @throws Exception
+     */
+    public static void addPublisherOK(Statement stmt) throws Exception{
+        long t0 = System.nanoTime();
+        try(ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection());
+            ResultSet rs = StatementCache.of(read.conn).executeQuery("" +
+                        "SELECT * " +
+                        "FROM Publishers " +
+                        "WHERE publisherID = 17 AND publisherName = 'Johnson' ;")){
+            TableRenderer.println("");
+            while (rs.next()){
+                TableRenderer.println("========== Query 7: New publisher added: [publisher ID: +" + rs.getInt(1) +
+                        ", publisher name: " + rs.getString(2) +
+                        "] =========");
+            }
+
+        } catch (SQLException e) {
+            OperationMetrics.ADD_PUBLISHER_OK.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.ADD_PUBLISHER_OK.recordSince(t0);
+    }
+
+
+    /**
+     * edit publisher name.
+     * Update the existing information about a publisher: Change Johnson into Thompson
+     * @param conn
+     */
+    public static void editPublishers(Connection conn){
+        long t0 = System.nanoTime();
+        try{
+            PreparedStatement posted = StatementCache.of(conn).prepare("UPDATE Publishers " +
+                    "SET publisherName = 'Thompson' " +
+                    "WHERE publisherID = 17 ;");
+            posted.executeUpdate();
+            // the old name's entry lists publisherID 17, the new name may now have books
+            booksByPublisherCache.invalidatePublisherID(17);
+            booksByPublisherCache.invalidate("Thompson");
+            if (titlesSnapshot != null){
+                titlesSnapshot.setPublisherName(17, "Thompson");
+            }
+        } catch(Exception e){
+            OperationMetrics.EDIT_PUBLISHERS.error();
+            System.out.println(e);
+        } finally{
+            System.out.println();
+        }
+        ReplicaRouter.wrote();
+        OperationMetrics.EDIT_PUBLISHERS.recordSince(t0);
+    }
+
+    /**
+     * check if changing publisher name is successful.
+     * @param stmt
+     * @throws Exception
+     */
+    public static void editPublisherOK(Statement stmt) throws Exception{
+        long t0 = System.nanoTime();
+        try(ReplicaRouter.ReadLease read = ReplicaRouter.read(stmt.getConnection());
+            ResultSet rs = StatementCache.of(read.conn).executeQuery("" +
+                        "SELECT * " +
+                        "FROM Publishers " +
+                        "WHERE publisherID = 17 AND publisherName = 'Thompson' ;")){
+            TableRenderer.println("");
+            if (rs.next()){
+                TableRenderer.println("========== Query 8: Edit publisher: Change Johnson into Thompson. \n" +
+                        "Result after edits: [publisher ID: +" + rs.getInt(1) +
+                        ", publisher name is Thompson: " + rs.getString(2).equals("Thompson") +
+                        "] =========");
+            }
+        } catch (SQLException e) {
+            OperationMetrics.EDIT_PUBLISHER_OK.error();
+            e.printStackTrace();
+        }
+        OperationMetrics.EDIT_PUBLISHER_OK.recordSince(t0);
+    }
+}
+
+/**
+ * Row counts and elapsed time for each table during a load,
+ * used to compare the row-at-a-time path with the batch path.
+ */
+class LoadStats {
+    static final int AUTHORS = 0;
+    static final int PUBLISHERS = 1;
+    static final int TITLES = 2;
+    static final int AUTHOR_ISBN = 3;
+    static final String[] TABLE_NAMES = {"Authors", "Publishers", "Titles", "AuthorISBN"};
+
+    final long[] rows = new long[TABLE_NAMES.length];
+    final long[] nanos = new long[TABLE_NAMES.length];
+    // rows skipped on the client because the key was already written
+    final long[] skipped = new long[TABLE_NAMES.length];
+    long lines;
+    long commits;
+    long commitNanos;
+    private long startNanos;
+    private long elapsedNanos;
+
+    synchronized void addLines(long n){
+        lines += n;
+    }
+
+    void start(){
+        startNanos = System.nanoTime();
+    }
+
+    void stop(){
+        elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * add inserted rows and time spent for one table
+     * @param table one of AUTHORS, PUBLISHERS, TITLES, AUTHOR_ISBN
+     * @param inserted rows inserted
+     * @param elapsed nanoseconds spent
+     */
+    synchronized void record(int table, long inserted, long elapsed){
+        rows[table] += inserted;
+        nanos[table] += elapsed;
+        OperationMetrics.LOAD[table].record(elapsed);
+    }
+
+    /**
+     * add one commit and the time it took; loader threads sharing these stats commit concurrently
+     * @param elapsed nanoseconds spent
+     */
+    synchronized void commit(long elapsed){
+        commits++;
+        commitNanos += elapsed;
+        OperationMetrics.LOAD_COMMIT.record(elapsed);
+    }
+
+    synchronized void skip(int table){
+        skipped[table]++;
+    }
+
+    static double perSecond(long count, long elapsed){
+        return elapsed == 0 ? 0 : count * 1e9 / elapsed;
+    }
+
+    /**
+     * print rows/sec for each table and for the whole load
+     * @param mode name of the load mode
+     */
+    void print(String mode){
+        String leftAlignFormat = "| %-12s | %12d | %12d | %12.1f | %14.1f |%n";
+        System.out.println();
+        System.out.println("========== Load (" + mode + "): " + lines + " lines in " +
+                String.format("%.3f", elapsedNanos / 1e9) + " s, " +
+                String.format("%.1f", perSecond(lines, elapsedNanos)) + " lines/sec =========");
+        System.out.format("+--------------+--------------+--------------+--------------+----------------+%n");
+        System.out.format("| table        | rows         | skipped      | time (ms)    | rows/sec       |%n");
+        System.out.format("+--------------+--------------+--------------+--------------+----------------+%n");
+        for (int i = 0; i < TABLE_NAMES.length; i++){
+            System.out.format(leftAlignFormat, TABLE_NAMES[i], rows[i], skipped[i], nanos[i] / 1e6, perSecond(rows[i], nanos[i]));
+        }
+        System.out.format("+--------------+--------------+--------------+--------------+----------------+%n");
+        if (commits > 0){
+            System.out.format("%d commits, %.1f ms%n", commits, commitNanos / 1e6);
+        }
+    }
+}
+
+/**
+ * Loads the data file with several worker threads.
+ * The file is split into chunks aligned to line boundaries and each worker
+ * reads and parses its own chunk, with its own connection and prepared statements.
+ *
+ * Workers run in three phases separated by a barrier so that foreign keys always exist:
+ * Authors and Publishers first, then Titles, then AuthorISBN. Each phase is a pass over the
+ * mapped chunk, so a worker holds no rows between phases however large the chunk is.
+ * A key is inserted only by the worker that claims it first in a shared DedupRegistry,
+ * so workers never race on the same row.
+ */
+class ParallelLoader {
+    private final String fileName;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int workers;
+    private final int batchSize;
+
+    // keys already claimed by some worker
+    private final DedupRegistry registry = new DedupRegistry();
+
+    ParallelLoader(String fileName, String url, String username, String password, int workers, int batchSize){
+        this.fileName = fileName;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.workers = Math.max(1, workers);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * split the file into at most parts chunks whose boundaries fall right after a newline
+     * @param fileName
+     * @param parts
+     * @return chunk boundaries; chunk i is [bounds[i], bounds[i + 1])
+     * @throws IOException
+     */
+    static long[] splitAtLines(String fileName, int parts) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")){
+            long length = file.length();
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(0L);
+            for (int i = 1; i < parts; i++){
+                long pos = Math.max(length * i / parts, bounds.get(bounds.size() - 1));
+                file.seek(pos);
+                // move to the first byte after the next newline
+                int b;
+                while ((b = file.read()) != -1 && b != '\n'){
+                    pos++;
+                }
+                pos = Math.min(pos + 1, length);
+                if (pos > bounds.get(bounds.size() - 1) && pos < length){
+                    bounds.add(pos);
+                }
+            }
+            bounds.add(length);
+            long[] result = new long[bounds.size()];
+            for (int i = 0; i < result.length; i++){
+                result[i] = bounds.get(i);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * run the workers and wait for all of them
+     * @param stats shared per-table row counts and timings
+     * @throws IOException
+     * @throws SQLException
+     */
+    void load(LoadStats stats) throws IOException, SQLException {
+        long[] bounds = splitAtLines(fileName, workers);
+        int chunks = bounds.length - 1;
+        CyclicBarrier barrier = new CyclicBarrier(chunks);
+        ExecutorService pool = Executors.newFixedThreadPool(chunks);
+        stats.start();
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < chunks; i++){
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                futures.add(pool.submit(() -> {
+                    try {
+                        runWorker(start, end, barrier, stats);
+                    } catch (Exception e){
+                        // wake up the other workers waiting at the barrier
+                        barrier.reset();
+                        throw e;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures){
+                try {
+                    future.get();
+                } catch (ExecutionException e){
+                    Throwable cause = e.getCause();
+                    if (cause instanceof BrokenBarrierException){
+                        continue; // another worker failed first
+                    }
+                    if (cause instanceof SQLException){
+                        throw (SQLException) cause;
+                    }
+                    if (cause instanceof IOException){
+                        throw (IOException) cause;
+                    }
+                    throw new SQLException(cause.getMessage(), cause);
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while loading", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            stats.stop();
+        }
+        System.out.println("Parallel load finished with " + chunks + " workers.");
+    }
+
+    private void runWorker(long start, long end, CyclicBarrier barrier, LoadStats stats) throws Exception {
+        try (
+                Connection conn = Book.getConnection(url, username, password);
+                PreparedStatement insertRow_Authors = conn.prepareStatement(Book.insertSql(LoadStats.AUTHORS));
+                PreparedStatement insertRow_Publishers = conn.prepareStatement(Book.insertSql(LoadStats.PUBLISHERS));
+                PreparedStatement insertRow_Titles = conn.prepareStatement(Book.insertSql(LoadStats.TITLES));
+                PreparedStatement insertRow_AuthorISBN = conn.prepareStatement(Book.insertSql(LoadStats.AUTHOR_ISBN))
+        ) {
+            conn.setAutoCommit(false);
+            PreparedStatement[] batches = {insertRow_Authors, insertRow_Publishers, insertRow_Titles, insertRow_AuthorISBN};
+
+            // phase 1: Authors and Publishers
+            long lines = 0;
+            int pending = 0;
+            try (BookDataParser parser = new BookDataParser(fileName, start, end, BookDataParser.DEFAULT_WINDOW)){
+                while (parser.next()){
+                    lines++;
+                    int authorID = parser.authorID();
+                    int publisherID = parser.publisherID();
+                    if (registry.addAuthor(authorID)){
+                        insertRow_Authors.setInt(1, authorID);
+                        insertRow_Authors.setString(2, parser.firstName());
+                        insertRow_Authors.setString(3, parser.lastName());
+                        insertRow_Authors.addBatch();
+                        pending++;
+                    }
+                    if (registry.addPublisher(publisherID)){
+                        insertRow_Publishers.setInt(1, publisherID);
+                        insertRow_Publishers.setString(2, parser.publisherName());
+                        insertRow_Publishers.addBatch();
+                        pending++;
+                    }
+                    if (pending >= batchSize){
+                        Book.flushBatches(conn, batches, stats);
+                        pending = 0;
+                    }
+                }
+            }
+            Book.flushBatches(conn, batches, stats);
+            stats.addLines(lines);
+            // every worker must have committed this phase before the next one starts
+            barrier.await();
+
+            // phase 2: Titles
+            pending = 0;
+            try (BookDataParser parser = new BookDataParser(fileName, start, end, BookDataParser.DEFAULT_WINDOW)){
+                while (parser.next()){
+                    String isbn = parser.isbn();
+                    if (registry.addTitle(isbn)){
+                        insertRow_Titles.setInt(1, parser.editionNumber());
+                        insertRow_Titles.setString(2, parser.years());
+                        insertRow_Titles.setInt(3, parser.publisherID());
+                        insertRow_Titles.setFloat(4, parser.price());
+                        insertRow_Titles.setString(5, parser.title());
+                        insertRow_Titles.setString(6, isbn);
+                        insertRow_Titles.addBatch();
+                        if (++pending >= batchSize){
+                            Book.flushBatches(conn, batches, stats);
+                            pending = 0;
+                        }
+                    }
+                }
+            }
+            Book.flushBatches(conn, batches, stats);
+            barrier.await();
+
+            // phase 3: AuthorISBN
+            pending = 0;
+            try (BookDataParser parser = new BookDataParser(fileName, start, end, BookDataParser.DEFAULT_WINDOW)){
+                while (parser.next()){
+                    int authorID = parser.authorID();
+                    String isbn = parser.isbn();
+                    if (registry.addAuthorISBN(authorID, isbn)){
+                        insertRow_AuthorISBN.setInt(1, authorID);
+                        insertRow_AuthorISBN.setString(2, isbn);
+                        insertRow_AuthorISBN.addBatch();
+                        if (++pending >= batchSize){
+                            Book.flushBatches(conn, batches, stats);
+                            pending = 0;
+                        }
+                    }
+                }
+            }
+            Book.flushBatches(conn, batches, stats);
+        }
+    }
+}
+
+/**
+ * Cursor over the tab-separated book data file that avoids BufferedReader and String.split.
+ * The file is memory-mapped with FileChannel.map in windows (so files larger than 2 GB work)
+ * and tab and newline bytes are scanned in place. The numeric columns are decoded straight
+ * from the bytes; Strings are only created when a text column is asked for.
+ *
+ * Usage:
+ *     while (parser.next()) { int authorID = parser.authorID(); String title = parser.title(); ... }
+ *
+ * Like the original loop, lines that do not have exactly 10 columns are skipped.
+ */
+class BookDataParser implements Closeable {
+    static final int COLUMNS = 10;
+    static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int pos;
+
+    // start and end (exclusive) of each column of the current row, relative to the window
+    private final int[] fieldStart = new int[COLUMNS];
+    private final int[] fieldEnd = new int[COLUMNS];
+    private byte[] scratch = new byte[256];
+
+    private int authorID;
+    private int publisherID;
+    private int editionNumber;
+    private float price;
+
+    BookDataParser(String fileName) throws IOException {
+        this(fileName, 0, -1, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param fileName
+     * @param start first byte to read; must be the start of a line
+     * @param end byte after the last one to read, or -1 for the end of the file
+     * @param windowSize bytes mapped at a time; must be larger than the longest line
+     */
+    BookDataParser(String fileName, long start, long end, int windowSize) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.end = end < 0 ? channel.size() : Math.min(end, channel.size());
+        this.windowSize = windowSize;
+        map(start);
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        long size = Math.min(windowSize, end - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(size, 0));
+        pos = 0;
+    }
+
+    /**
+     * advance to the next row with 10 columns
+     * @return false at the end of the input
+     * @throws IOException
+     * @throws NumberFormatException if a numeric column is malformed
+     */
+    boolean next() throws IOException {
+        while (true){
+            int limit = window.limit();
+            if (pos >= limit){
+                if (windowStart + limit >= end){
+                    return false;
+                }
+                map(windowStart + limit);
+                continue;
+            }
+            int lineStart = pos;
+            int column = 0;
+            fieldStart[0] = pos;
+            int i = pos;
+            boolean lineEnded = false;
+            while (i < limit){
+                byte b = window.get(i);
+                if (b == '\n'){
+                    lineEnded = true;
+                    break;
+                }
+                if (b == '\t'){
+                    if (column < COLUMNS){
+                        fieldEnd[column] = i;
+                    }
+                    column++;
+                    if (column < COLUMNS){
+                        fieldStart[column] = i + 1;
+                    }
+                }
+                i++;
+            }
+            if (!lineEnded && windowStart + limit < end){
+                // the line continues past this window: remap starting at this line
+                if (lineStart == 0){
+                    throw new IOException("Line longer than the mapping window at byte " + windowStart);
+                }
+                map(windowStart + lineStart);
+                continue;
+            }
+            int lineEnd = i;
+            pos = lineEnded ? i + 1 : i;
+            if (lineEnd > lineStart && window.get(lineEnd - 1) == '\r'){
+                lineEnd--;
+            }
+            // trailing empty columns do not count, as with line.split("\t")
+            while (lineEnd > lineStart && window.get(lineEnd - 1) == '\t'){
+                lineEnd--;
+                column--;
+            }
+            if (column < COLUMNS){
+                fieldEnd[column] = lineEnd;
+            }
+            // The row is only valid when the attribute numbers are 10
+            if (column != COLUMNS - 1 || lineEnd == lineStart){
+                continue;
+            }
+            authorID = parseInt(0);
+            publisherID = parseInt(3);
+            editionNumber = parseInt(5);
+            price = parseFloat(7);
+            return true;
+        }
+    }
+
+    /**
+     * @return file offset of the first byte after the current row
+     */
+    long position(){
+        return windowStart + pos;
+    }
+
+    int authorID(){
+        return authorID;
+    }
+
+    String firstName(){
+        return text(1);
+    }
+
+    String lastName(){
+        return text(2);
+    }
+
+    int publisherID(){
+        return publisherID;
+    }
+
+    String publisherName(){
+        return text(4);
+    }
+
+    int editionNumber(){
+        return editionNumber;
+    }
+
+    String years(){
+        return text(6);
+    }
+
+    float price(){
+        return price;
+    }
+
+    String title(){
+        return text(8);
+    }
+
+    String isbn(){
+        return text(9);
+    }
+
+    /**
+     * @return the raw text of a column of the current row
+     */
+    String text(int column){
+        int from = fieldStart[column];
+        int len = fieldEnd[column] - from;
+        if (scratch.length < len){
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        for (int i = 0; i < len; i++){
+            scratch[i] = window.get(from + i);
+        }
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private int parseInt(int column){
+        int i = fieldStart[column];
+        int to = fieldEnd[column];
+        boolean negative = false;
+        if (i < to && (window.get(i) == '-' || window.get(i) == '+')){
+            negative = window.get(i) == '-';
+            i++;
+        }
+        if (i == to || to - i > 10){
+            return Integer.parseInt(text(column));
+        }
+        long value = 0;
+        for (; i < to; i++){
+            int digit = window.get(i) - '0';
+            if (digit < 0 || digit > 9){
+                return Integer.parseInt(text(column));
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE){
+            return Integer.parseInt(text(column));
+        }
+        return (int) value;
+    }
+
+    private float parseFloat(int column){
+        int i = fieldStart[column];
+        int to = fieldEnd[column];
+        boolean negative = false;
+        if (i < to && (window.get(i) == '-' || window.get(i) == '+')){
+            negative = window.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < to; i++){
+            byte b = window.get(i);
+            if (b == '.' && decimals < 0){
+                decimals = 0;
+            } else if (b >= '0' && b <= '9' && digits < 18){
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (decimals >= 0){
+                    decimals++;
+                }
+            } else {
+                // exponents, very long numbers and bad input go the slow way
+                return Float.parseFloat(text(column));
+            }
+        }
+        if (digits == 0){
+            return Float.parseFloat(text(column));
+        }
+        double value = decimals > 0 ? mantissa / Math.pow(10, decimals) : mantissa;
+        return (float) (negative ? -value : value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+/**
+ * Remembers which keys the loader has already written, so repeated authors, publishers,
+ * titles and AuthorISBN links are skipped on the client instead of failing on the server.
+ * Keys are kept in primitive open-addressing sets; nothing is boxed for the common case.
+ *
+ * ISBNs of up to 12 characters from [0-9A-Za-z] are packed into a long (base 37, case folded
+ * and trailing spaces dropped like the CHAR column compares them). Each ISBN gets a dense
+ * ordinal so an (authorID, isbn) pair fits into a single long.
+ */
+class DedupRegistry {
+    private final IntHashSet authorIDs = new IntHashSet(1024);
+    private final IntHashSet publisherIDs = new IntHashSet(256);
+    private final LongIntHashMap isbnOrdinals = new LongIntHashMap(1024);
+    private final LongHashSet authorISBNs = new LongHashSet(1024);
+    // ISBNs that do not fit in a long
+    private final Map<String, Integer> otherIsbns = new HashMap<>();
+    private int nextOrdinal;
+
+    /**
+     * @return true if the authorID has not been seen before
+     */
+    synchronized boolean addAuthor(int authorID){
+        return authorIDs.add(authorID);
+    }
+
+    /**
+     * @return true if the publisherID has not been seen before
+     */
+    synchronized boolean addPublisher(int publisherID){
+        return publisherIDs.add(publisherID);
+    }
+
+    /**
+     * @return true if the isbn has not been seen before
+     */
+    synchronized boolean addTitle(String isbn){
+        int before = nextOrdinal;
+        ordinal(isbn);
+        return nextOrdinal != before;
+    }
+
+    /**
+     * @return true if the (authorID, isbn) pair has not been seen before
+     */
+    synchronized boolean addAuthorISBN(int authorID, String isbn){
+        return authorISBNs.add(((long) authorID << 32) | (ordinal(isbn) & 0xFFFFFFFFL));
+    }
+
+    private int ordinal(String isbn){
+        long code = encodeIsbn(isbn);
+        if (code >= 0){
+            int ordinal = isbnOrdinals.get(code);
+            if (ordinal < 0){
+                ordinal = nextOrdinal++;
+                isbnOrdinals.put(code, ordinal);
+            }
+            return ordinal;
+        }
+        Integer ordinal = otherIsbns.get(isbn);
+        if (ordinal == null){
+            ordinal = nextOrdinal++;
+            otherIsbns.put(isbn, ordinal);
+        }
+        return ordinal;
+    }
+
+    /**
+     * pack an isbn into a non-negative long
+     * @return the code, or -1 if the isbn does not fit
+     */
+    static long encodeIsbn(String isbn){
+        int len = isbn.length();
+        while (len > 0 && isbn.charAt(len - 1) == ' '){
+            len--;
+        }
+        if (len > 12){
+            return -1;
+        }
+        long code = 0;
+        for (int i = 0; i < len; i++){
+            char c = isbn.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9'){
+                digit = c - '0' + 1;
+            } else if (c >= 'A' && c <= 'Z'){
+                digit = c - 'A' + 11;
+            } else if (c >= 'a' && c <= 'z'){
+                digit = c - 'a' + 11;
+            } else {
+                return -1;
+            }
+            code = code * 37 + digit;
+        }
+        return code;
+    }
+}
+
+/**
+ * Open-addressing hash set of ints with linear probing.
+ */
+class IntHashSet {
+    private int[] keys;
+    private boolean[] used;
+    private int size;
+
+    IntHashSet(int expected){
+        int capacity = Integer.highestOneBit(Math.max(expected * 2, 16) - 1) << 1;
+        keys = new int[capacity];
+        used = new boolean[capacity];
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean contains(int key){
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask){
+            if (keys[i] == key){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the key was not already in the set
+     */
+    boolean add(int key){
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (used[i]){
+            if (keys[i] == key){
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        used[i] = true;
+        if (++size * 2 > keys.length){
+            rehash();
+        }
+        return true;
+    }
+
+    private void rehash(){
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        keys = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++){
+            if (oldUsed[j]){
+                int i = mix(oldKeys[j]) & mask;
+                while (used[i]){
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                used[i] = true;
+            }
+        }
+    }
+
+    static int mix(int key){
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+/**
+ * Open-addressing hash set of longs with linear probing.
+ */
+class LongHashSet {
+    private long[] keys;
+    private boolean[] used;
+    private int size;
+
+    LongHashSet(int expected){
+        int capacity = Integer.highestOneBit(Math.max(expected * 2, 16) - 1) << 1;
+        keys = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean contains(long key){
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask){
+            if (keys[i] == key){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the key was not already in the set
+     */
+    boolean add(long key){
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (used[i]){
+            if (keys[i] == key){
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        used[i] = true;
+        if (++size * 2 > keys.length){
+            rehash();
+        }
+        return true;
+    }
+
+    private void rehash(){
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++){
+            if (oldUsed[j]){
+                int i = mix(oldKeys[j]) & mask;
+                while (used[i]){
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                used[i] = true;
+            }
+        }
+    }
+
+    static int mix(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
+
+/**
+ * Open-addressing hash map from long keys to non-negative int values.
+ */
+class LongIntHashMap {
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+
+    LongIntHashMap(int expected){
+        int capacity = Integer.highestOneBit(Math.max(expected * 2, 16) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+    }
+
+    int size(){
+        return size;
+    }
+
+    /**
+     * @return the value for the key, or -1 if there is none
+     */
+    int get(long key){
+        int mask = keys.length - 1;
+        for (int i = LongHashSet.mix(key) & mask; used[i]; i = (i + 1) & mask){
+            if (keys[i] == key){
+                return values[i];
+            }
+        }
+        return -1;
+    }
+
+    void put(long key, int value){
+        int mask = keys.length - 1;
+        int i = LongHashSet.mix(key) & mask;
+        while (used[i]){
+            if (keys[i] == key){
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        used[i] = true;
+        if (++size * 2 > keys.length){
+            rehash();
+        }
+    }
+
+    private void rehash(){
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++){
+            if (oldUsed[j]){
+                int i = LongHashSet.mix(oldKeys[j]) & mask;
+                while (used[i]){
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                used[i] = true;
+            }
+        }
+    }
+}
+
+/**
+ * Bulk load path: the data file is read once and split into deduplicated staging files,
+ * one per table, which are then loaded with LOAD DATA LOCAL INFILE in foreign key order.
+ * If local infile is not allowed (by the server's local_infile variable or by the driver's
+ * allowLoadLocalInfile property) the staging files are loaded with batched inserts instead.
+ */
+class BulkLoader {
+    // table columns in the order they are written to the staging files, indexed like LoadStats
+    static final String[] COLUMNS = {
+            "authorID, firstName, lastName",
+            "publisherID, publisherName",
+            "editionNumber, years, publisherID, price, title, isbn",
+            "authorID, isbn"
+    };
+
+    private final Connection conn;
+    private final int batchSize;
+
+    BulkLoader(Connection conn, int batchSize){
+        this.conn = conn;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * stage the data file and load it
+     * @param fileName
+     * @param compare also load the staging files the other way and print both timings
+     * @param stats
+     * @throws IOException
+     * @throws SQLException
+     */
+    void load(String fileName, boolean compare, LoadStats stats) throws IOException, SQLException {
+        Path dir = Files.createTempDirectory("books-staging");
+        Path[] files = new Path[COLUMNS.length];
+        for (int table = 0; table < files.length; table++){
+            files[table] = dir.resolve(LoadStats.TABLE_NAMES[table] + ".tsv");
+        }
+        try {
+            stats.start();
+            long t0 = System.nanoTime();
+            stage(fileName, files, stats);
+            long stageNanos = System.nanoTime() - t0;
+
+            boolean localInfile = localInfileAllowed();
+            long loadNanos = localInfile ? loadDataInfile(files, stats) : batchInsert(files, stats);
+            stats.stop();
+            System.out.format("Staging took %.1f ms.%n", stageNanos / 1e6);
+
+            if (compare){
+                clearTables();
+                LoadStats other = new LoadStats();
+                other.start();
+                long otherNanos = localInfile ? batchInsert(files, other) : loadDataInfile(files, other);
+                other.stop();
+                other.print(localInfile ? "batch (staged)" : "LOAD DATA");
+                System.out.println();
+                System.out.println("========== Bulk load comparison =========");
+                System.out.format("LOAD DATA LOCAL INFILE: %10.1f ms%n", (localInfile ? loadNanos : otherNanos) / 1e6);
+                System.out.format("batched inserts:        %10.1f ms%n", (localInfile ? otherNanos : loadNanos) / 1e6);
+            } else if (!localInfile){
+                System.out.println("local_infile is not allowed; staging files were loaded with batched inserts.");
+            }
+        } finally {
+            for (Path file : files){
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * read the data file once and write each new key to the staging file of its table
+     */
+    private void stage(String fileName, Path[] files, LoadStats stats) throws IOException {
+        DedupRegistry registry = new DedupRegistry();
+        BufferedWriter[] out = new BufferedWriter[files.length];
+        try (BookDataParser parser = new BookDataParser(fileName)){
+            for (int table = 0; table < files.length; table++){
+                out[table] = Files.newBufferedWriter(files[table], StandardCharsets.UTF_8);
+            }
+            while (parser.next()){
+                stats.lines++;
+                int authorID = parser.authorID();
+                int publisherID = parser.publisherID();
+                String isbn = parser.isbn();
+                if (registry.addAuthor(authorID)){
+                    writeRow(out[LoadStats.AUTHORS], String.valueOf(authorID), parser.firstName(), parser.lastName());
+                } else {
+                    stats.skip(LoadStats.AUTHORS);
+                }
+                if (registry.addPublisher(publisherID)){
+                    writeRow(out[LoadStats.PUBLISHERS], String.valueOf(publisherID), parser.publisherName());
+                } else {
+                    stats.skip(LoadStats.PUBLISHERS);
+                }
+                if (registry.addTitle(isbn)){
+                    writeRow(out[LoadStats.TITLES], String.valueOf(parser.editionNumber()), parser.years(),
+                            String.valueOf(publisherID), String.valueOf(parser.price()), parser.title(), isbn);
+                } else {
+                    stats.skip(LoadStats.TITLES);
+                }
+                if (registry.addAuthorISBN(authorID, isbn)){
+                    writeRow(out[LoadStats.AUTHOR_ISBN], String.valueOf(authorID), isbn);
+                } else {
+                    stats.skip(LoadStats.AUTHOR_ISBN);
+                }
+            }
+        } finally {
+            for (BufferedWriter writer : out){
+                if (writer != null){
+                    writer.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * write one tab-separated row, escaped the way LOAD DATA reads it by default
+     */
+    static void writeRow(BufferedWriter out, String... values) throws IOException {
+        for (int i = 0; i < values.length; i++){
+            if (i > 0){
+                out.write('\t');
+            }
+            String value = values[i];
+            for (int j = 0; j < value.length(); j++){
+                char c = value.charAt(j);
+                if (c == '\\'){
+                    out.write("\\\\");
+                } else if (c == '\t'){
+                    out.write("\\t");
+                } else if (c == '\n'){
+                    out.write("\\n");
+                } else if (c == '\r'){
+                    out.write("\\r");
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+        out.write('\n');
+    }
+
+    /**
+     * split a staging row back into its values
+     */
+    static String[] readRow(String line, int columns){
+        String[] values = new String[columns];
+        StringBuilder value = new StringBuilder();
+        int column = 0;
+        for (int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+            if (c == '\t'){
+                values[column++] = value.toString();
+                value.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()){
+                char next = line.charAt(++i);
+                value.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                value.append(c);
+            }
+        }
+        values[column] = value.toString();
+        return values;
+    }
+
+    /**
+     * @return true if the server has local_infile enabled
+     */
+    boolean localInfileAllowed(){
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW VARIABLES LIKE 'local_infile'")){
+            return rs.next() && (rs.getString(2).equalsIgnoreCase("ON") || rs.getString(2).equals("1"));
+        } catch (SQLException e){
+            return false;
+        }
+    }
+
+    /**
+     * LOAD DATA LOCAL INFILE each staging file in foreign key order.
+     * Falls back to batched inserts if the driver refuses to send local files.
+     * @return elapsed nanoseconds
+     */
+    long loadDataInfile(Path[] files, LoadStats stats) throws IOException, SQLException {
+        long start = System.nanoTime();
+        try (Statement stmt = conn.createStatement()){
+            for (int table = 0; table < files.length; table++){
+                String path = files[table].toAbsolutePath().toString().replace("\\", "\\\\").replace("'", "\\'");
+                long t0 = System.nanoTime();
+                int rows = stmt.executeUpdate("LOAD DATA LOCAL INFILE '" + path + "' " +
+                        "INTO TABLE " + LoadStats.TABLE_NAMES[table] + " CHARACTER SET utf8mb4 " +
+                        "FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' " +
+                        "(" + COLUMNS[table] + ")");
+                stats.record(table, rows, System.nanoTime() - t0);
+            }
+        } catch (SQLException e){
+            if (isLocalInfileRefused(e)){
+                System.out.println("LOAD DATA LOCAL INFILE refused (" + e.getMessage() + "); using batched inserts.");
+                clearTables();
+                return batchInsert(files, stats);
+            }
+            throw e;
+        }
+        return System.nanoTime() - start;
+    }
+
+    static boolean isLocalInfileRefused(SQLException e){
+        // 1148 / 3948: the used command is not allowed / loading local data is disabled
+        return e.getErrorCode() == 1148 || e.getErrorCode() == 3948 ||
+                (e.getMessage() != null && e.getMessage().toLowerCase().contains("local data"));
+    }
+
+    /**
+     * insert the staging files with JDBC batches, one commit per batch
+     * @return elapsed nanoseconds
+     */
+    long batchInsert(Path[] files, LoadStats stats) throws IOException, SQLException {
+        long start = System.nanoTime();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            for (int table = 0; table < files.length; table++){
+                int columns = COLUMNS[table].split(",").length;
+                StringBuilder sql = new StringBuilder("INSERT INTO " + LoadStats.TABLE_NAMES[table] +
+                        "(" + COLUMNS[table] + ") values(");
+                for (int i = 0; i < columns; i++){
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                sql.append(")");
+                try (PreparedStatement insert = conn.prepareStatement(sql.toString());
+                     BufferedReader br = Files.newBufferedReader(files[table], StandardCharsets.UTF_8)){
+                    int pending = 0;
+                    String line;
+                    while ((line = br.readLine()) != null){
+                        String[] values = readRow(line, columns);
+                        for (int i = 0; i < columns; i++){
+                            insert.setString(i + 1, values[i]);
+                        }
+                        insert.addBatch();
+                        if (++pending == batchSize){
+                            flush(table, insert, stats);
+                            pending = 0;
+                        }
+                    }
+                    if (pending > 0){
+                        flush(table, insert, stats);
+                    }
+                }
+            }
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void flush(int table, PreparedStatement insert, LoadStats stats) throws SQLException {
+        long t0 = System.nanoTime();
+        int[] counts;
+        try {
+            counts = insert.executeBatch();
+        } catch (BatchUpdateException e){
+            counts = e.getUpdateCounts();
+        }
+        conn.commit();
+        stats.record(table, Book.countInserted(counts), System.nanoTime() - t0);
+    }
+
+    /**
+     * delete all rows, children before parents
+     */
+    void clearTables() throws SQLException {
+        try (Statement stmt = conn.createStatement()){
+            for (int table = LoadStats.TABLE_NAMES.length - 1; table >= 0; table--){
+                stmt.executeUpdate("DELETE FROM " + LoadStats.TABLE_NAMES[table]);
+            }
+        }
+        if (!conn.getAutoCommit()){
+            conn.commit();
+        }
+    }
+}
+
+/**
+ * Incremental load: compares the new data file with the previously applied snapshot and
+ * issues only the INSERT, UPDATE and DELETE statements needed to get from one to the other.
+ *
+ * The previous snapshot is either the previous data file (--previous=BookDataOLD.txt) or a
+ * state file (--state=file) holding one fingerprint per row, written after every delta run.
+ * Without either, the rows already in the tables are the previous snapshot.
+ */
+class DeltaLoader {
+    private static final String[] INSERT = {
+            "INSERT INTO Authors(authorID, firstName, lastName) values(?,?,?)",
+            "INSERT INTO Publishers(publisherID, publisherName) values(?,?)",
+            "INSERT INTO Titles(isbn, editionNumber, years, publisherID, price, title) values(?,?,?,?,?,?)",
+            "INSERT INTO AuthorISBN(authorID, isbn) values(?,?)"
+    };
+    // the key is bound last; AuthorISBN rows are all key and are never updated
+    private static final String[] UPDATE = {
+            "UPDATE Authors SET firstName = ?, lastName = ? WHERE authorID = ?",
+            "UPDATE Publishers SET publisherName = ? WHERE publisherID = ?",
+            "UPDATE Titles SET editionNumber = ?, years = ?, publisherID = ?, price = ?, title = ? WHERE isbn = ?",
+            null
+    };
+    private static final String[] DELETE = {
+            "DELETE FROM Authors WHERE authorID = ?",
+            "DELETE FROM Publishers WHERE publisherID = ?",
+            "DELETE FROM Titles WHERE isbn = ?",
+            "DELETE FROM AuthorISBN WHERE authorID = ? AND isbn = ?"
+    };
+
+    private final Connection conn;
+    private final int batchSize;
+
+    DeltaLoader(Connection conn, int batchSize){
+        this.conn = conn;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Rows of one data file, per table, keyed by primary key.
+     * Values are in INSERT column order (key columns first); they are null for a snapshot read from a state file.
+     */
+    static class Snapshot {
+        final List<Map<String, Long>> fingerprints = new ArrayList<>();
+        final List<Map<String, String[]>> values = new ArrayList<>();
+        long lines;
+
+        Snapshot(){
+            for (int table = 0; table < LoadStats.TABLE_NAMES.length; table++){
+                fingerprints.add(new LinkedHashMap<>());
+                values.add(new LinkedHashMap<>());
+            }
+        }
+
+        /**
+         * keep the first row seen for a key, like the loader does
+         */
+        void add(int table, String key, String... row){
+            if (!fingerprints.get(table).containsKey(key)){
+                fingerprints.get(table).put(key, fingerprint(row));
+                values.get(table).put(key, row);
+            }
+        }
+
+        static Snapshot read(String fileName) throws IOException {
+            Snapshot snapshot = new Snapshot();
+            try (BookDataParser parser = new BookDataParser(fileName)){
+                while (parser.next()){
+                    snapshot.lines++;
+                    String authorID = String.valueOf(parser.authorID());
+                    String publisherID = String.valueOf(parser.publisherID());
+                    String isbn = parser.isbn();
+                    snapshot.add(LoadStats.AUTHORS, authorID, authorID, parser.firstName(), parser.lastName());
+                    snapshot.add(LoadStats.PUBLISHERS, publisherID, publisherID, parser.publisherName());
+                    snapshot.add(LoadStats.TITLES, isbn, isbn, String.valueOf(parser.editionNumber()), parser.years(),
+                            publisherID, String.valueOf(parser.price()), parser.title());
+                    snapshot.add(LoadStats.AUTHOR_ISBN, authorID + "\t" + isbn, authorID, isbn);
+                }
+            }
+            return snapshot;
+        }
+
+        /**
+         * read the current table contents, formatted the way read() formats the data file
+         */
+        static Snapshot query(Connection conn) throws SQLException {
+            Snapshot snapshot = new Snapshot();
+            try (Statement stmt = conn.createStatement()){
+                try (ResultSet rs = stmt.executeQuery("SELECT authorID, firstName, lastName FROM Authors")){
+                    while (rs.next()){
+                        String authorID = String.valueOf(rs.getInt(1));
+                        snapshot.add(LoadStats.AUTHORS, authorID, authorID, rs.getString(2), rs.getString(3));
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT publisherID, publisherName FROM Publishers")){
+                    while (rs.next()){
+                        String publisherID = String.valueOf(rs.getInt(1));
+                        snapshot.add(LoadStats.PUBLISHERS, publisherID, publisherID, rs.getString(2));
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT isbn, editionNumber, years, publisherID, price, title FROM Titles")){
+                    while (rs.next()){
+                        String isbn = rs.getString(1);
+                        snapshot.add(LoadStats.TITLES, isbn, isbn, String.valueOf(rs.getInt(2)), rs.getString(3),
+                                String.valueOf(rs.getInt(4)), String.valueOf(rs.getFloat(5)), rs.getString(6));
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT authorID, isbn FROM AuthorISBN")){
+                    while (rs.next()){
+                        String authorID = String.valueOf(rs.getInt(1));
+                        String isbn = rs.getString(2);
+                        snapshot.add(LoadStats.AUTHOR_ISBN, authorID + "\t" + isbn, authorID, isbn);
+                    }
+                }
+            }
+            return snapshot;
+        }
+
+        /**
+         * read a state file: lines of table index, fingerprint and key, separated by tabs
+         */
+        static Snapshot readState(Path file) throws IOException {
+            Snapshot snapshot = new Snapshot();
+            try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+                String line;
+                while ((line = br.readLine()) != null){
+                    String[] parts = line.split("\t", 3);
+                    if (parts.length == 3){
+                        snapshot.fingerprints.get(Integer.parseInt(parts[0])).put(parts[2], Long.parseLong(parts[1]));
+                    }
+                }
+            }
+            return snapshot;
+        }
+
+        void writeState(Path file) throws IOException {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)){
+                for (int table = 0; table < fingerprints.size(); table++){
+                    for (Map.Entry<String, Long> entry : fingerprints.get(table).entrySet()){
+                        out.write(table + "\t" + entry.getValue() + "\t" + entry.getKey());
+                        out.newLine();
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * 64-bit FNV-1a hash of the row values
+         */
+        static long fingerprint(String[] row){
+            long hash = 0xcbf29ce484222325L;
+            for (String value : row){
+                for (int i = 0; i < value.length(); i++){
+                    hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+                }
+                hash = (hash ^ 0x1F) * 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * apply the differences between the previous snapshot and fileName in one transaction
+     * @param fileName new data file
+     * @param previousFile previously applied data file, or null
+     * @param stateFile fingerprint state file, or null
+     * @param stats inserted rows per table
+     * @throws IOException
+     * @throws SQLException
+     */
+    void load(String fileName, String previousFile, String stateFile, LoadStats stats) throws IOException, SQLException {
+        stats.start();
+        Snapshot current = Snapshot.read(fileName);
+        Snapshot previous;
+        String source;
+        if (previousFile != null){
+            previous = Snapshot.read(previousFile);
+            source = previousFile;
+        } else if (stateFile != null && Files.exists(Paths.get(stateFile))){
+            previous = Snapshot.readState(Paths.get(stateFile));
+            source = stateFile;
+        } else {
+            // no record of the last run: diff against what is already loaded
+            previous = Snapshot.query(conn);
+            source = "the current tables";
+        }
+
+        int tables = LoadStats.TABLE_NAMES.length;
+        long[] inserted = new long[tables];
+        long[] updated = new long[tables];
+        long[] deleted = new long[tables];
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            // parents before children for inserts and updates
+            for (int table = 0; table < tables; table++){
+                Map<String, Long> before = previous.fingerprints.get(table);
+                long t0 = System.nanoTime();
+                try (PreparedStatement insert = conn.prepareStatement(INSERT[table]);
+                     PreparedStatement update = UPDATE[table] == null ? null : conn.prepareStatement(UPDATE[table])){
+                    int pendingInserts = 0;
+                    int pendingUpdates = 0;
+                    for (Map.Entry<String, String[]> entry : current.values.get(table).entrySet()){
+                        Long old = before.get(entry.getKey());
+                        String[] row = entry.getValue();
+                        if (old == null){
+                            bind(insert, row, 0);
+                            insert.addBatch();
+                            inserted[table]++;
+                            if (++pendingInserts == batchSize){
+                                insert.executeBatch();
+                                pendingInserts = 0;
+                            }
+                        } else if (update != null && old != current.fingerprints.get(table).get(entry.getKey()).longValue()){
+                            // attributes first, key last
+                            bind(update, row, 1);
+                            update.setString(row.length, row[0]);
+                            update.addBatch();
+                            updated[table]++;
+                            if (++pendingUpdates == batchSize){
+                                update.executeBatch();
+                                pendingUpdates = 0;
+                            }
+                        }
+                    }
+                    insert.executeBatch();
+                    if (update != null){
+                        update.executeBatch();
+                    }
+                }
+                stats.record(table, inserted[table], System.nanoTime() - t0);
+            }
+            // children before parents for deletes
+            for (int table = tables - 1; table >= 0; table--){
+                Map<String, Long> after = current.fingerprints.get(table);
+                try (PreparedStatement delete = conn.prepareStatement(DELETE[table])){
+                    int pending = 0;
+                    for (String key : previous.fingerprints.get(table).keySet()){
+                        if (!after.containsKey(key)){
+                            String[] keyColumns = key.split("\t");
+                            bind(delete, keyColumns, 0);
+                            delete.addBatch();
+                            deleted[table]++;
+                            if (++pending == batchSize){
+                                delete.executeBatch();
+                                pending = 0;
+                            }
+                        }
+                    }
+                    delete.executeBatch();
+                }
+            }
+            conn.commit();
+        } catch (SQLException e){
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        stats.lines = current.lines;
+        stats.stop();
+
+        if (stateFile != null){
+            current.writeState(Paths.get(stateFile));
+        }
+
+        System.out.println();
+        System.out.println("========== Delta load against " + source + " =========");
+        String leftAlignFormat = "| %-12s | %10d | %10d | %10d |%n";
+        System.out.format("+--------------+------------+------------+------------+%n");
+        System.out.format("| table        | inserted   | updated    | deleted    |%n");
+        System.out.format("+--------------+------------+------------+------------+%n");
+        for (int table = 0; table < tables; table++){
+            System.out.format(leftAlignFormat, LoadStats.TABLE_NAMES[table], inserted[table], updated[table], deleted[table]);
+        }
+        System.out.format("+--------------+------------+------------+------------+%n");
+    }
+
+    private static void bind(PreparedStatement stmt, String[] row, int from) throws SQLException {
+        for (int i = from; i < row.length; i++){
+            stmt.setString(i - from + 1, row[i]);
+        }
+    }
+}
+
+/**
+ * Checkpoint file of a chunked load: the byte offset after the last committed chunk
+ * and the number of that chunk, written as "offset chunk" and replaced atomically.
+ */
+class LoadCheckpoint {
+    private final Path file;
+    long offset;
+    long chunk;
+
+    private LoadCheckpoint(Path file){
+        this.file = file;
+    }
+
+    /**
+     * read the checkpoint file, or start a new checkpoint if it does not exist
+     */
+    static LoadCheckpoint open(Path file) throws IOException {
+        LoadCheckpoint checkpoint = new LoadCheckpoint(file);
+        if (Files.exists(file)){
+            String[] parts = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().split("\\s+");
+            checkpoint.offset = Long.parseLong(parts[0]);
+            checkpoint.chunk = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * record a committed chunk ending at offset; the file is forced to disk before it replaces the old one
+     */
+    void save(long offset) throws IOException {
+        this.offset = offset;
+        this.chunk++;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            channel.write(ByteBuffer.wrap((offset + " " + chunk + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+}
+
+/**
+ * Loads the data file as a pipeline of stages connected by bounded queues:
+ * a reader stage splits blocks of rows out of the mapped file with BookDataParser, a parse stage
+ * deduplicates them, a parents stage writes each block's new Authors and Publishers rows, and one
+ * or more writer stages write the Titles and AuthorISBN rows, one commit per block in every stage.
+ * Each writer owns the isbns that hash to it, and it waits for the parents stage to commit a block
+ * before writing that block's rows, so the foreign key checks stay on and parsing never waits
+ * on the database. A full queue blocks the stage in front of it, so a slow database slows down
+ * reading instead of filling the heap. Queue depths and stage throughput are printed every second.
+ */
+class PipelineLoader {
+    private static final List<Row> END_OF_ROWS = new ArrayList<>();
+    private static final Block END_OF_BLOCKS = new Block(END_OF_ROWS, null);
+
+    private final String fileName;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int writers;
+    private final int blockSize;
+    private final BlockingQueue<List<Row>> parsed;
+    private final BlockingQueue<Block> parents;
+    // one queue per writer, holding the rows of the isbns that writer owns
+    private final List<BlockingQueue<Block>> rows = new ArrayList<>();
+    private final Stage reader = new Stage("reader");
+    private final Stage parser = new Stage("parser");
+    private final Stage parentWriter = new Stage("parents");
+    private final Stage writer = new Stage("writers");
+    private volatile Throwable failure;
+    // stage item counts at the previous progress line
+    private final long[] lastItems = new long[4];
+
+    /**
+     * one data line; the flags say which tables get a new row from it
+     */
+    static class Row {
+        int authorID;
+        String firstName;
+        String lastName;
+        int publisherID;
+        String publisherName;
+        int editionNumber;
+        String years;
+        float price;
+        String title;
+        String isbn;
+        boolean newAuthor;
+        boolean newPublisher;
+        boolean newTitle;
+        boolean newAuthorISBN;
+    }
+
+    /**
+     * rows of one block bound for one stage; the latch opens when the block's parents are committed
+     */
+    static class Block {
+        final List<Row> rows;
+        final CountDownLatch parentsCommitted;
+
+        Block(List<Row> rows, CountDownLatch parentsCommitted){
+            this.rows = rows;
+            this.parentsCommitted = parentsCommitted;
+        }
+    }
+
+    /**
+     * items handled and busy time of one stage
+     */
+    static class Stage {
+        final String name;
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+
+        Stage(String name){
+            this.name = name;
+        }
+
+        void add(long count, long nanos){
+            items.addAndGet(count);
+            busyNanos.addAndGet(nanos);
+        }
+    }
+
+    PipelineLoader(String fileName, String url, String username, String password, int writers, int queueSize, int blockSize){
+        this.fileName = fileName;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.writers = Math.max(1, writers);
+        this.blockSize = blockSize;
+        this.parsed = new ArrayBlockingQueue<>(queueSize);
+        this.parents = new ArrayBlockingQueue<>(queueSize);
+        for (int i = 0; i < this.writers; i++){
+            rows.add(new ArrayBlockingQueue<>(queueSize));
+        }
+    }
+
+    void load(LoadStats stats) throws IOException, SQLException {
+        ExecutorService pool = Executors.newFixedThreadPool(3 + writers);
+        stats.start();
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(pool.submit(() -> guard(this::read)));
+        futures.add(pool.submit(() -> guard(() -> parse(stats))));
+        futures.add(pool.submit(() -> guard(() -> writeParents(stats))));
+        for (BlockingQueue<Block> queue : rows){
+            futures.add(pool.submit(() -> guard(() -> write(queue, stats))));
+        }
+        pool.shutdown();
+        try {
+            long last = System.nanoTime();
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)){
+                long now = System.nanoTime();
+                printProgress(now - last);
+                last = now;
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+            throw new SQLException("Interrupted while loading", e);
+        }
+        stats.stop();
+        if (failure instanceof SQLException){
+            throw (SQLException) failure;
+        }
+        if (failure instanceof IOException){
+            throw (IOException) failure;
+        }
+        if (failure != null){
+            throw new SQLException(failure.getMessage(), failure);
+        }
+        printSummary(stats);
+    }
+
+    interface StageBody {
+        void run() throws Exception;
+    }
+
+    private void guard(StageBody body){
+        try {
+            body.run();
+        } catch (Throwable e){
+            if (failure == null){
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * put an item on a queue, waiting while it is full unless another stage failed
+     */
+    private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)){
+            if (failure != null){
+                throw new InterruptedException("another stage failed");
+            }
+        }
+    }
+
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        T item;
+        while ((item = queue.poll(100, TimeUnit.MILLISECONDS)) == null){
+            if (failure != null){
+                throw new InterruptedException("another stage failed");
+            }
+        }
+        return item;
+    }
+
+    private void read() throws Exception {
+        try (BookDataParser in = new BookDataParser(fileName)){
+            while (true){
+                long t0 = System.nanoTime();
+                List<Row> block = new ArrayList<>(blockSize);
+                while (block.size() < blockSize && in.next()){
+                    Row row = new Row();
+                    row.authorID = in.authorID();
+                    row.firstName = in.firstName();
+                    row.lastName = in.lastName();
+                    row.publisherID = in.publisherID();
+                    row.publisherName = in.publisherName();
+                    row.editionNumber = in.editionNumber();
+                    row.years = in.years();
+                    row.price = in.price();
+                    row.title = in.title();
+                    row.isbn = in.isbn();
+                    block.add(row);
+                }
+                reader.add(block.size(), System.nanoTime() - t0);
+                if (block.isEmpty()){
+                    break;
+                }
+                put(parsed, block);
+            }
+        } finally {
+            put(parsed, END_OF_ROWS);
+        }
+    }
+
+    private void parse(LoadStats stats) throws Exception {
+        DedupRegistry registry = new DedupRegistry();
+        try {
+            List<Row> block;
+            while ((block = take(parsed)) != END_OF_ROWS){
+                long t0 = System.nanoTime();
+                List<Row> newParents = new ArrayList<>();
+                List<List<Row>> owned = new ArrayList<>(writers);
+                for (int i = 0; i < writers; i++){
+                    owned.add(new ArrayList<>());
+                }
+                for (Row row : block){
+                    row.newAuthor = registry.addAuthor(row.authorID);
+                    row.newPublisher = registry.addPublisher(row.publisherID);
+                    row.newTitle = registry.addTitle(row.isbn);
+                    row.newAuthorISBN = registry.addAuthorISBN(row.authorID, row.isbn);
+                    countSkipped(row, stats);
+                    if (row.newAuthor || row.newPublisher){
+                        newParents.add(row);
+                    }
+                    if (row.newTitle || row.newAuthorISBN){
+                        owned.get(ShardedCatalog.shardOf(row.isbn, writers)).add(row);
+                    }
+                }
+                stats.addLines(block.size());
+                parser.add(block.size(), System.nanoTime() - t0);
+                // the writers hold this block's rows back until the parents stage opens the latch
+                CountDownLatch parentsCommitted = new CountDownLatch(newParents.isEmpty() ? 0 : 1);
+                if (!newParents.isEmpty()){
+                    put(parents, new Block(newParents, parentsCommitted));
+                }
+                for (int i = 0; i < writers; i++){
+                    if (!owned.get(i).isEmpty()){
+                        put(rows.get(i), new Block(owned.get(i), parentsCommitted));
+                    }
+                }
+            }
+        } finally {
+            put(parents, END_OF_BLOCKS);
+            // one end marker per writer
+            for (BlockingQueue<Block> queue : rows){
+                put(queue, END_OF_BLOCKS);
+            }
+        }
+    }
+
+    private static void countSkipped(Row row, LoadStats stats){
+        if (!row.newAuthor){
+            stats.skip(LoadStats.AUTHORS);
+        }
+        if (!row.newPublisher){
+            stats.skip(LoadStats.PUBLISHERS);
+        }
+        if (!row.newTitle){
+            stats.skip(LoadStats.TITLES);
+        }
+        if (!row.newAuthorISBN){
+            stats.skip(LoadStats.AUTHOR_ISBN);
+        }
+    }
+
+    private void writeParents(LoadStats stats) throws Exception {
+        try (
+                Connection conn = Book.getConnection(url, username, password);
+                PreparedStatement insertRow_Authors = conn.prepareStatement(Book.insertSql(LoadStats.AUTHORS));
+                PreparedStatement insertRow_Publishers = conn.prepareStatement(Book.insertSql(LoadStats.PUBLISHERS))
+        ) {
+            conn.setAutoCommit(false);
+            // the index of each statement is its LoadStats table
+            PreparedStatement[] batches = {insertRow_Authors, insertRow_Publishers};
+            Block block;
+            while ((block = take(parents)) != END_OF_BLOCKS){
+                long t0 = System.nanoTime();
+                for (Row row : block.rows){
+                    if (row.newAuthor){
+                        insertRow_Authors.setInt(1, row.authorID);
+                        insertRow_Authors.setString(2, row.firstName);
+                        insertRow_Authors.setString(3, row.lastName);
+                        insertRow_Authors.addBatch();
+                    }
+                    if (row.newPublisher){
+                        insertRow_Publishers.setInt(1, row.publisherID);
+                        insertRow_Publishers.setString(2, row.publisherName);
+                        insertRow_Publishers.addBatch();
+                    }
+                }
+                Book.flushBatches(conn, batches, stats);
+                block.parentsCommitted.countDown();
+                parentWriter.add(block.rows.size(), System.nanoTime() - t0);
+            }
+        }
+    }
+
+    private void write(BlockingQueue<Block> queue, LoadStats stats) throws Exception {
+        try (
+                Connection conn = Book.getConnection(url, username, password);
+                PreparedStatement insertRow_Authors = conn.prepareStatement(Book.insertSql(LoadStats.AUTHORS));
+                PreparedStatement insertRow_Publishers = conn.prepareStatement(Book.insertSql(LoadStats.PUBLISHERS));
+                PreparedStatement insertRow_Titles = conn.prepareStatement(Book.insertSql(LoadStats.TITLES));
+                PreparedStatement insertRow_AuthorISBN = conn.prepareStatement(Book.insertSql(LoadStats.AUTHOR_ISBN))
+        ) {
+            conn.setAutoCommit(false);
+            // Authors and Publishers stay empty here, the parents stage commits them
+            PreparedStatement[] batches = {insertRow_Authors, insertRow_Publishers, insertRow_Titles, insertRow_AuthorISBN};
+            Block block;
+            while ((block = take(queue)) != END_OF_BLOCKS){
+                long t0 = System.nanoTime();
+                for (Row row : block.rows){
+                    if (row.newTitle){
+                        insertRow_Titles.setInt(1, row.editionNumber);
+                        insertRow_Titles.setString(2, row.years);
+                        insertRow_Titles.setInt(3, row.publisherID);
+                        insertRow_Titles.setFloat(4, row.price);
+                        insertRow_Titles.setString(5, row.title);
+                        insertRow_Titles.setString(6, row.isbn);
+                        insertRow_Titles.addBatch();
+                    }
+                    if (row.newAuthorISBN){
+                        insertRow_AuthorISBN.setInt(1, row.authorID);
+                        insertRow_AuthorISBN.setString(2, row.isbn);
+                        insertRow_AuthorISBN.addBatch();
+                    }
+                }
+                // waiting for the parents is not busy time
+                long waited = System.nanoTime();
+                while (!block.parentsCommitted.await(100, TimeUnit.MILLISECONDS)){
+                    if (failure != null){
+                        throw new InterruptedException("another stage failed");
+                    }
+                }
+                waited = System.nanoTime() - waited;
+                Book.flushBatches(conn, batches, stats);
+                writer.add(block.rows.size(), System.nanoTime() - t0 - waited);
+            }
+        }
+    }
+
+    private void printProgress(long elapsedNanos){
+        Stage[] stages = {reader, parser, parentWriter, writer};
+        StringBuilder sb = new StringBuilder("pipeline:");
+        for (int i = 0; i < stages.length; i++){
+            long items = stages[i].items.get();
+            sb.append(String.format(" %s %.0f rows/s", stages[i].name, LoadStats.perSecond(items - lastItems[i], elapsedNanos)));
+            lastItems[i] = items;
+            if (i == 0){
+                sb.append(" | rows queue ").append(parsed.size());
+            } else if (i == 1){
+                int queued = 0;
+                for (BlockingQueue<Block> queue : rows){
+                    queued += queue.size();
+                }
+                sb.append(" | parents queue ").append(parents.size()).append(" | writer queues ").append(queued);
+            }
+            sb.append(i < stages.length - 1 ? " |" : "");
+        }
+        System.out.println(sb);
+    }
+
+    private void printSummary(LoadStats stats){
+        System.out.println();
+        System.out.println("========== Pipeline stages (" + writers + " writers) =========");
+        for (Stage stage : new Stage[]{reader, parser, parentWriter, writer}){
+            // the busy time of the writers is summed over all writer threads
+            System.out.format("%-8s %12d rows, busy %10.1f ms, %12.1f rows/sec while busy%n", stage.name,
+                    stage.items.get(), stage.busyNanos.get() / 1e6, LoadStats.perSecond(stage.items.get(), stage.busyNanos.get()));
+        }
+    }
+}
+
+/**
+ * Small JDBC connection pool, one per url and username.
+ * Connections are validated when borrowed, connections idle for longer than the idle timeout
+ * are closed down to the minimum size, and borrowers wait when the maximum size is reached.
+ * The Connection handed out is a proxy whose close() gives the physical connection back.
+ */
+class ConnectionPool {
+    static final int DEFAULT_MAX = Math.max(16, 2 * Runtime.getRuntime().availableProcessors());
+    private static final long BORROW_TIMEOUT_MILLIS = 30000;
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private static final Map<String, ConnectionPool> POOLS = new LinkedHashMap<>();
+    private static int minSize = 1;
+    private static int maxSize = DEFAULT_MAX;
+    private static long idleMillis = 60000;
+    private static ScheduledExecutorService evictor;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int min;
+    private final int max;
+    private final long idleTimeoutNanos;
+    // idle physical connections, most recently returned first
+    private final Deque<Idle> idle = new ArrayDeque<>();
+    private int open;
+
+    // checkout latency: count, total, max and a log2 histogram of nanoseconds
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong borrowNanos = new AtomicLong();
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+    private final AtomicLong[] latencyBuckets = new AtomicLong[64];
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+
+    private static class Idle {
+        final Connection conn;
+        final long since;
+
+        Idle(Connection conn, long since){
+            this.conn = conn;
+            this.since = since;
+        }
+    }
+
+    private ConnectionPool(String url, String username, String password, int min, int max, long idleMillis){
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.min = min;
+        this.max = Math.max(1, max);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        for (int i = 0; i < latencyBuckets.length; i++){
+            latencyBuckets[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * set the sizes used by pools created after this call
+     */
+    static synchronized void configure(int min, int max, long idleTimeoutMillis){
+        minSize = min;
+        maxSize = Math.max(min, max);
+        idleMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return the pool for this url and username, created on first use
+     */
+    static synchronized ConnectionPool get(String url, String username, String password) throws SQLException {
+        String key = url + "\n" + username;
+        ConnectionPool pool = POOLS.get(key);
+        if (pool == null){
+            try {
+                Class.forName("com.mysql.cj.jdbc.Driver");
+            } catch (ClassNotFoundException e){
+                throw new SQLException("MySQL driver not found on the classpath", e);
+            }
+            pool = new ConnectionPool(url, username, password, minSize, maxSize, idleMillis);
+            POOLS.put(key, pool);
+            if (evictor == null){
+                evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "connection-pool-evictor");
+                    t.setDaemon(true);
+                    return t;
+                });
+                long period = Math.max(1000, idleMillis / 2);
+                evictor.scheduleWithFixedDelay(ConnectionPool::evictAll, period, period, TimeUnit.MILLISECONDS);
+            }
+            pool.fill();
+        }
+        return pool;
+    }
+
+    private static synchronized void evictAll(){
+        for (ConnectionPool pool : POOLS.values()){
+            pool.evictIdle();
+        }
+    }
+
+    /**
+     * close every pool and its connections
+     */
+    static synchronized void closeAll(){
+        for (ConnectionPool pool : POOLS.values()){
+            pool.close();
+        }
+        POOLS.clear();
+        if (evictor != null){
+            evictor.shutdownNow();
+            evictor = null;
+        }
+    }
+
+    static synchronized void printStats(){
+        for (ConnectionPool pool : POOLS.values()){
+            pool.print();
+        }
+    }
+
+    /**
+     * open connections up to the minimum size
+     */
+    private void fill() throws SQLException {
+        while (true){
+            synchronized (this){
+                if (open >= min){
+                    return;
+                }
+                open++;
+            }
+            Connection conn;
+            try {
+                conn = connect();
+            } catch (SQLException e){
+                synchronized (this){
+                    open--;
+                }
+                throw e;
+            }
+            synchronized (this){
+                idle.addFirst(new Idle(conn, System.nanoTime()));
+                notifyAll();
+            }
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        Connection conn = DriverManager.getConnection(url, username, password); // return instance of Connection.
+        created.incrementAndGet();
+        System.out.println("Connected.");
+        return conn;
+    }
+
+    /**
+     * take a valid connection, opening a new one if none is idle and the pool is not full
+     * @return a connection whose close() returns it to the pool
+     * @throws SQLException if no connection becomes available within the borrow timeout
+     */
+    Connection borrow() throws SQLException {
+        long t0 = System.nanoTime();
+        long deadline = t0 + TimeUnit.MILLISECONDS.toNanos(BORROW_TIMEOUT_MILLIS);
+        while (true){
+            Connection conn = null;
+            boolean create = false;
+            synchronized (this){
+                while (idle.isEmpty() && open >= max){
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0){
+                        throw new SQLException("Timed out waiting for a connection (" + max + " in use)");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, wait);
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", e);
+                    }
+                }
+                if (!idle.isEmpty()){
+                    conn = idle.pollFirst().conn;
+                } else {
+                    open++;
+                    create = true;
+                }
+            }
+            if (create){
+                try {
+                    conn = connect();
+                } catch (SQLException e){
+                    discard(null);
+                    throw e;
+                }
+            } else if (!isValid(conn)){
+                invalid.incrementAndGet();
+                discard(conn);
+                continue;
+            }
+            recordBorrow(System.nanoTime() - t0);
+            return wrap(conn);
+        }
+    }
+
+    private static boolean isValid(Connection conn){
+        try {
+            return conn.isValid(VALIDATE_TIMEOUT_SECONDS);
+        } catch (SQLException e){
+            return false;
+        }
+    }
+
+    /**
+     * give a physical connection back, resetting the transaction state the borrower left behind
+     */
+    private void release(Connection conn){
+        try {
+            if (!conn.getAutoCommit()){
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e){
+            discard(conn);
+            return;
+        }
+        synchronized (this){
+            idle.addFirst(new Idle(conn, System.nanoTime()));
+            notifyAll();
+        }
+    }
+
+    /**
+     * close a physical connection and free its slot
+     */
+    private void discard(Connection conn){
+        if (conn != null){
+            StatementCache.release(conn);
+            try {
+                conn.close();
+            } catch (SQLException e){
+                // already broken
+            }
+        }
+        synchronized (this){
+            open--;
+            notifyAll();
+        }
+    }
+
+    private void evictIdle(){
+        List<Connection> expired = new ArrayList<>();
+        synchronized (this){
+            long now = System.nanoTime();
+            // the oldest idle connections are at the end
+            while (open - expired.size() > min && !idle.isEmpty() && now - idle.peekLast().since > idleTimeoutNanos){
+                expired.add(idle.pollLast().conn);
+            }
+        }
+        for (Connection conn : expired){
+            evicted.incrementAndGet();
+            discard(conn);
+        }
+    }
+
+    private void close(){
+        List<Connection> all = new ArrayList<>();
+        synchronized (this){
+            while (!idle.isEmpty()){
+                all.add(idle.pollFirst().conn);
+            }
+        }
+        for (Connection conn : all){
+            discard(conn);
+        }
+    }
+
+    private void recordBorrow(long nanos){
+        borrows.incrementAndGet();
+        borrowNanos.addAndGet(nanos);
+        maxBorrowNanos.accumulateAndGet(nanos, Math::max);
+        latencyBuckets[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].incrementAndGet();
+    }
+
+    /**
+     * @return upper bound in nanoseconds of the bucket holding the given fraction of checkouts
+     */
+    long borrowPercentile(double fraction){
+        long total = borrows.get();
+        long seen = 0;
+        for (int i = 0; i < latencyBuckets.length; i++){
+            seen += latencyBuckets[i].get();
+            if (seen > 0 && seen >= total * fraction){
+                return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    private void print(){
+        long count = borrows.get();
+        System.out.println();
+        System.out.println("========== Connection pool " + url + " (" + username + ") =========");
+        System.out.format("size %d-%d, open %d, idle %d, created %d, evicted %d, failed validation %d%n",
+                min, max, open, idle.size(), created.get(), evicted.get(), invalid.get());
+        System.out.format("checkouts %d, avg %.1f us, p50 < %.1f us, p99 < %.1f us, max %.1f us%n", count,
+                count == 0 ? 0 : borrowNanos.get() / 1e3 / count, borrowPercentile(0.5) / 1e3,
+                borrowPercentile(0.99) / 1e3, maxBorrowNanos.get() / 1e3);
+    }
+
+    /**
+     * wrap a physical connection so that close() returns it to the pool instead of closing it
+     */
+    private Connection wrap(Connection physical){
+        InvocationHandler handler = new InvocationHandler() {
+            private boolean closed;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("close")){
+                    if (!closed){
+                        closed = true;
+                        release(physical);
+                    }
+                    return null;
+                }
+                if (name.equals("equals")){
+                    return proxy == args[0];
+                }
+                if (name.equals("hashCode")){
+                    return System.identityHashCode(proxy);
+                }
+                if (name.equals("isClosed")){
+                    return closed || physical.isClosed();
+                }
+                if (closed){
+                    throw new SQLException("Connection was returned to the pool");
+                }
+                try {
+                    return method.invoke(physical, args);
+                } catch (InvocationTargetException e){
+                    throw e.getCause();
+                }
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+    }
+}
+
+/**
+ * Prepared statements of one database session, keyed by SQL text.
+ * The least recently used statement is closed when the cache is full, so repeated calls
+ * reuse the same (server-side, with useServerPrepStmts=true) prepared statement instead of
+ * preparing and leaking a new one. Callers must not close the statements they get.
+ */
+class StatementCache {
+    static final int DEFAULT_CAPACITY = 64;
+    // one cache per physical connection; the pool removes it when it closes the connection
+    private static final Map<Connection, StatementCache> CACHES = new IdentityHashMap<>();
+
+    private final Connection conn;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private StatementCache(Connection conn, int capacity){
+        this.conn = conn;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+                if (size() <= capacity){
+                    return false;
+                }
+                evictions++;
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the statement cache of the session behind conn (a pooled connection maps to its physical connection)
+     */
+    static StatementCache of(Connection conn) throws SQLException {
+        Connection physical = conn.isWrapperFor(Connection.class) ? conn.unwrap(Connection.class) : conn;
+        synchronized (CACHES){
+            StatementCache cache = CACHES.get(physical);
+            if (cache == null){
+                cache = new StatementCache(physical, DEFAULT_CAPACITY);
+                CACHES.put(physical, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * close and forget the cache of a physical connection that is being closed
+     */
+    static void release(Connection physical){
+        StatementCache cache;
+        synchronized (CACHES){
+            cache = CACHES.remove(physical);
+        }
+        if (cache != null){
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return a cached prepared statement for sql with its parameters cleared
+     */
+    synchronized PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt != null && !stmt.isClosed()){
+            hits++;
+            stmt.clearParameters();
+            return stmt;
+        }
+        misses++;
+        stmt = conn.prepareStatement(sql);
+        if (QueryTracer.enabled){
+            stmt = QueryTracer.wrap(stmt, sql);
+        }
+        statements.put(sql, stmt);
+        return stmt;
+    }
+
+    /**
+     * run a cached query; the caller closes the ResultSet but not the statement
+     * @param sql
+     * @param params values for the ? placeholders, in order
+     */
+    ResultSet executeQuery(String sql, Object... params) throws SQLException {
+        PreparedStatement stmt = prepare(sql);
+        for (int i = 0; i < params.length; i++){
+            stmt.setObject(i + 1, params[i]);
+        }
+        return stmt.executeQuery();
+    }
+
+    synchronized long hits(){
+        return hits;
+    }
+
+    synchronized long misses(){
+        return misses;
+    }
+
+    synchronized long evictions(){
+        return evictions;
+    }
+
+    /**
+     * close every cached statement
+     */
+    synchronized void clear(){
+        for (PreparedStatement stmt : statements.values()){
+            closeQuietly(stmt);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement stmt){
+        try {
+            stmt.close();
+        } catch (SQLException e){
+            // the statement is unusable either way
+        }
+    }
+}
+
+/**
+ * Runs report steps concurrently on virtual threads (a cached thread pool before Java 21).
+ * Steps are grouped into chains that run in order on one pooled connection, and chains are
+ * grouped into waves; the chains of a wave run at the same time and a wave starts after the
+ * previous one has finished. Each chain's output is captured and printed in the order the
+ * chains were added, followed by the latency of every step.
+ */
+class ReportRunner {
+    interface Step {
+        void run(Connection conn, Statement stmt) throws Exception;
+    }
+
+    private static class Chain {
+        final List<String> names = new ArrayList<>();
+        final List<Step> steps = new ArrayList<>();
+        final List<Long> nanos = new ArrayList<>();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // what the chain's tables write to the --reportFile
+        final ByteArrayOutputStream fileOutput = new ByteArrayOutputStream();
+    }
+
+    /**
+     * builder for the chains of one wave
+     */
+    class Wave {
+        final List<Chain> chains = new ArrayList<>();
+
+        Wave chain(){
+            chains.add(new Chain());
+            return this;
+        }
+
+        Wave step(String name, Step step){
+            Chain chain = chains.get(chains.size() - 1);
+            chain.names.add(name);
+            chain.steps.add(step);
+            return this;
+        }
+    }
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final List<Wave> waves = new ArrayList<>();
+
+    ReportRunner(String url, String username, String password){
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    Wave wave(){
+        Wave wave = new Wave();
+        waves.add(wave);
+        return wave;
+    }
+
+    /**
+     * @return a virtual-thread-per-task executor when the JDK has one, otherwise a cached thread pool
+     */
+    static ExecutorService newExecutor(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e){
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    void run() throws Exception {
+        PrintStream console = System.out;
+        ThreadOutput routed = new ThreadOutput(console);
+        long start = System.nanoTime();
+        ExecutorService executor = newExecutor();
+        System.setOut(new PrintStream(routed, true));
+        try {
+            for (Wave wave : waves){
+                List<Future<Void>> futures = new ArrayList<>();
+                for (Chain chain : wave.chains){
+                    futures.add(executor.submit(() -> {
+                        runChain(chain, routed);
+                        return null;
+                    }));
+                }
+                for (Future<Void> future : futures){
+                    try {
+                        future.get();
+                    } catch (ExecutionException e){
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+                    }
+                }
+            }
+        } finally {
+            System.out.flush();
+            System.setOut(console);
+            executor.shutdown();
+        }
+        long total = System.nanoTime() - start;
+
+        long sum = 0;
+        for (Wave wave : waves){
+            for (Chain chain : wave.chains){
+                console.write(chain.output.toByteArray());
+                TableRenderer.writeFile(chain.fileOutput.toByteArray());
+                for (long nanos : chain.nanos){
+                    sum += nanos;
+                }
+            }
+        }
+        console.println();
+        console.println("========== Report latency =========");
+        String leftAlignFormat = "| %-18s | %12.2f |%n";
+        console.format("+--------------------+--------------+%n");
+        console.format("| step               | time (ms)    |%n");
+        console.format("+--------------------+--------------+%n");
+        for (Wave wave : waves){
+            for (Chain chain : wave.chains){
+                for (int i = 0; i < chain.names.size(); i++){
+                    console.format(leftAlignFormat, chain.names.get(i), chain.nanos.get(i) / 1e6);
+                }
+            }
+        }
+        console.format("+--------------------+--------------+%n");
+        console.format("sum of steps %.2f ms, wall time %.2f ms, speedup %.2fx%n", sum / 1e6, total / 1e6,
+                total == 0 ? 0 : (double) sum / total);
+    }
+
+    private void runChain(Chain chain, ThreadOutput routed) throws Exception {
+        routed.capture(chain.output);
+        TableRenderer.capture(chain.fileOutput);
+        try (Connection conn = Book.getConnection(url, username, password);
+             Statement stmt = conn.createStatement()){
+            for (Step step : chain.steps){
+                long t0 = System.nanoTime();
+                step.run(conn, stmt);
+                chain.nanos.add(System.nanoTime() - t0);
+            }
+        } finally {
+            System.out.flush();
+            routed.capture(null);
+            TableRenderer.capture(null);
+        }
+    }
+
+    /**
+     * OutputStream that sends each thread's bytes to that thread's capture buffer, if it has one
+     */
+    static class ThreadOutput extends OutputStream {
+        private final OutputStream console;
+        private final ThreadLocal<OutputStream> target = new ThreadLocal<>();
+
+        ThreadOutput(OutputStream console){
+            this.console = console;
+        }
+
+        void capture(OutputStream buffer){
+            if (buffer == null){
+                target.remove();
+            } else {
+                target.set(buffer);
+            }
+        }
+
+        private OutputStream current(){
+            OutputStream buffer = target.get();
+            return buffer != null ? buffer : console;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            current().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            current().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            current().flush();
+        }
+    }
+}
+
+/**
+ * Read-through cache of booksByPublisher results keyed by publisher name, with LRU eviction
+ * and an optional time to live. Each entry remembers the publisherIDs that carry the name, so
+ * a new or changed Titles/Publishers row can invalidate exactly the entries it affects.
+ */
+class PublisherBooksCache {
+    private static class CachedBooks {
+        final List<Object[]> books;
+        final Set<Integer> publisherIDs;
+        final long loadedAt;
+
+        CachedBooks(List<Object[]> books, Set<Integer> publisherIDs, long loadedAt){
+            this.books = books;
+            this.publisherIDs = publisherIDs;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private int capacity = 256;
+    private long ttlNanos;
+    private final LinkedHashMap<String, CachedBooks> entries = new LinkedHashMap<String, CachedBooks>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedBooks> eldest){
+            if (size() <= capacity){
+                return false;
+            }
+            evictions++;
+            return true;
+        }
+    };
+    // bumped by every invalidation, so a load that raced with one is not cached
+    private long version;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * @param capacity maximum number of publishers kept
+     * @param ttlMillis entry lifetime, or 0 to keep entries until they are evicted or invalidated
+     */
+    synchronized void configure(int capacity, long ttlMillis){
+        this.capacity = Math.max(1, capacity);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * @return title, year and isbn of the books of the publisher, ordered by title
+     */
+    List<Object[]> get(Connection conn, String publisher) throws SQLException {
+        long loadVersion;
+        synchronized (this){
+            CachedBooks entry = entries.get(publisher);
+            if (entry != null && (ttlNanos == 0 || System.nanoTime() - entry.loadedAt < ttlNanos)){
+                hits++;
+                return entry.books;
+            }
+            if (entry != null){
+                entries.remove(publisher);
+                evictions++;
+            }
+            misses++;
+            loadVersion = version;
+        }
+        CachedBooks entry = load(conn, publisher);
+        synchronized (this){
+            if (version == loadVersion){
+                entries.put(publisher, entry);
+            }
+        }
+        return entry.books;
+    }
+
+    private static CachedBooks load(Connection conn, String publisher) throws SQLException {
+        List<Object[]> books = new ArrayList<>();
+        try(ResultSet rs = StatementCache.of(conn).executeQuery(Book.BOOKS_BY_PUBLISHER_SQL, publisher)){
+            while (rs.next()){
+                books.add(new Object[]{rs.getString(1), rs.getInt(2), rs.getString(3)});
+            }
+        }
+        Set<Integer> publisherIDs = new HashSet<>();
+        try(ResultSet rs = StatementCache.of(conn).executeQuery("" +
+                "SELECT publisherID FROM Publishers WHERE publisherName = ?", publisher)){
+            while (rs.next()){
+                publisherIDs.add(rs.getInt(1));
+            }
+        }
+        return new CachedBooks(Collections.unmodifiableList(books), publisherIDs, System.nanoTime());
+    }
+
+    /**
+     * drop the entry of a publisher name
+     */
+    synchronized void invalidate(String publisher){
+        version++;
+        if (entries.remove(publisher) != null){
+            invalidations++;
+        }
+    }
+
+    /**
+     * drop every entry whose publisher name belongs to publisherID
+     */
+    synchronized void invalidatePublisherID(int publisherID){
+        version++;
+        Iterator<CachedBooks> it = entries.values().iterator();
+        while (it.hasNext()){
+            if (it.next().publisherIDs.contains(publisherID)){
+                it.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * drop everything, e.g. after the Titles or Publishers table was reloaded
+     */
+    synchronized void invalidateAll(){
+        version++;
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    synchronized long hits(){
+        return hits;
+    }
+
+    synchronized long misses(){
+        return misses;
+    }
+
+    synchronized long evictions(){
+        return evictions;
+    }
+
+    synchronized void printStats(){
+        System.out.println();
+        System.out.format("booksByPublisher cache: %d entries, %d hits, %d misses, %d evictions, %d invalidations%n",
+                entries.size(), hits, misses, evictions, invalidations);
+    }
+}
+
+/**
+ * Column-oriented, in-process copy of the Titles table for analytic queries that would
+ * otherwise scan Titles on the server (see the queries in BooksPopulate).
+ * publisherID, editionNumber and year are int arrays, prices are long cents and titles are
+ * dictionary encoded. Readers work on an immutable set of columns; a write builds new columns
+ * and publishes them, so writes are O(rows) and meant to be rare (addTitle, not a load).
+ * With parallel set, scans over large snapshots are split across the common fork/join pool.
+ */
+class TitlesSnapshot {
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int CHUNK = 1 << 14;
+
+    private static final class Columns {
+        final int size;
+        final String[] isbns;
+        final int[] publisherIDs;
+        final int[] editionNumbers;
+        final int[] years;
+        final long[] priceCents;
+        final int[] titleCodes;
+        final String[] dictionary;
+
+        Columns(int size, String[] isbns, int[] publisherIDs, int[] editionNumbers, int[] years,
+                long[] priceCents, int[] titleCodes, String[] dictionary){
+            this.size = size;
+            this.isbns = isbns;
+            this.publisherIDs = publisherIDs;
+            this.editionNumbers = editionNumbers;
+            this.years = years;
+            this.priceCents = priceCents;
+            this.titleCodes = titleCodes;
+            this.dictionary = dictionary;
+        }
+    }
+
+    private final boolean parallel;
+    private volatile Columns columns = new Columns(0, new String[0], new int[0], new int[0], new int[0],
+            new long[0], new int[0], new String[0]);
+    private volatile Map<Integer, String> publisherNames = new HashMap<>();
+    // writer-side state: title dictionary and row of each isbn
+    private final Map<String, Integer> titleCodes = new HashMap<>();
+    private final Map<String, Integer> rowOfIsbn = new HashMap<>();
+
+    private TitlesSnapshot(boolean parallel){
+        this.parallel = parallel;
+    }
+
+    /**
+     * read Titles and Publishers into a new snapshot
+     * @param conn
+     * @param parallel run scans on parallel streams for large snapshots
+     */
+    static TitlesSnapshot load(Connection conn, boolean parallel) throws SQLException {
+        TitlesSnapshot snapshot = new TitlesSnapshot(parallel);
+        int capacity = 1024;
+        String[] isbns = new String[capacity];
+        int[] publisherIDs = new int[capacity];
+        int[] editionNumbers = new int[capacity];
+        int[] years = new int[capacity];
+        long[] priceCents = new long[capacity];
+        int[] codes = new int[capacity];
+        List<String> dictionary = new ArrayList<>();
+        int size = 0;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT isbn, publisherID, editionNumber, years, price, title FROM Titles")){
+            while (rs.next()){
+                if (size == capacity){
+                    capacity *= 2;
+                    isbns = Arrays.copyOf(isbns, capacity);
+                    publisherIDs = Arrays.copyOf(publisherIDs, capacity);
+                    editionNumbers = Arrays.copyOf(editionNumbers, capacity);
+                    years = Arrays.copyOf(years, capacity);
+                    priceCents = Arrays.copyOf(priceCents, capacity);
+                    codes = Arrays.copyOf(codes, capacity);
+                }
+                isbns[size] = rs.getString(1);
+                publisherIDs[size] = rs.getInt(2);
+                editionNumbers[size] = rs.getInt(3);
+                years[size] = parseYear(rs.getString(4));
+                priceCents[size] = toCents(rs.getBigDecimal(5));
+                codes[size] = snapshot.titleCode(rs.getString(6), dictionary);
+                snapshot.rowOfIsbn.put(isbns[size], size);
+                size++;
+            }
+        }
+        snapshot.columns = new Columns(size, isbns, publisherIDs, editionNumbers, years, priceCents, codes,
+                dictionary.toArray(new String[0]));
+        snapshot.refreshPublishers(conn);
+        return snapshot;
+    }
+
+    private int titleCode(String title, List<String> dictionary){
+        Integer code = titleCodes.get(title);
+        if (code == null){
+            code = dictionary.size();
+            dictionary.add(title);
+            titleCodes.put(title, code);
+        }
+        return code;
+    }
+
+    static int parseYear(String years){
+        try {
+            return Integer.parseInt(years.trim());
+        } catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    static long toCents(BigDecimal price){
+        return price.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    /**
+     * insert or replace the row of a title, as addTitle does on the server
+     */
+    synchronized void upsertTitle(String isbn, int editionNumber, String years, int publisherID, BigDecimal price, String title){
+        Columns c = columns;
+        List<String> dictionary = new ArrayList<>(Arrays.asList(c.dictionary));
+        int code = titleCode(title, dictionary);
+        Integer existing = rowOfIsbn.get(isbn);
+        int row = existing != null ? existing : c.size;
+        int size = existing != null ? c.size : c.size + 1;
+        Columns next = new Columns(size,
+                Arrays.copyOf(c.isbns, size), Arrays.copyOf(c.publisherIDs, size), Arrays.copyOf(c.editionNumbers, size),
+                Arrays.copyOf(c.years, size), Arrays.copyOf(c.priceCents, size), Arrays.copyOf(c.titleCodes, size),
+                dictionary.toArray(new String[0]));
+        next.isbns[row] = isbn;
+        next.publisherIDs[row] = publisherID;
+        next.editionNumbers[row] = editionNumber;
+        next.years[row] = parseYear(years);
+        next.priceCents[row] = toCents(price);
+        next.titleCodes[row] = code;
+        rowOfIsbn.put(isbn, row);
+        columns = next;
+    }
+
+    /**
+     * re-read the publisher names used by avgPriceByPublisher
+     */
+    void refreshPublishers(Connection conn) throws SQLException {
+        Map<Integer, String> names = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT publisherID, publisherName FROM Publishers")){
+            while (rs.next()){
+                names.put(rs.getInt(1), rs.getString(2));
+            }
+        }
+        publisherNames = names;
+    }
+
+    synchronized void setPublisherName(int publisherID, String publisherName){
+        Map<Integer, String> names = new HashMap<>(publisherNames);
+        names.put(publisherID, publisherName);
+        publisherNames = names;
+    }
+
+    int size(){
+        return columns.size;
+    }
+
+    String title(int row){
+        Columns c = columns;
+        return c.dictionary[c.titleCodes[row]];
+    }
+
+    int year(int row){
+        return columns.years[row];
+    }
+
+    BigDecimal price(int row){
+        return BigDecimal.valueOf(columns.priceCents[row], 2);
+    }
+
+    String publisherName(int publisherID){
+        return publisherNames.get(publisherID);
+    }
+
+    private boolean useParallel(Columns c){
+        return parallel && c.size >= PARALLEL_THRESHOLD;
+    }
+
+    /**
+     * rows with a year after the given one, like "WHERE years > 2000"
+     */
+    int[] rowsAfterYear(int year){
+        Columns c = columns;
+        IntStream rows = IntStream.range(0, c.size);
+        if (useParallel(c)){
+            return rows.parallel().filter(i -> c.years[i] > year).toArray();
+        }
+        int[] result = new int[c.size];
+        int n = 0;
+        for (int i = 0; i < c.size; i++){
+            if (c.years[i] > year){
+                result[n++] = i;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * rows ordered by price, like "ORDER BY price ASC"
+     */
+    int[] orderByPrice(){
+        Columns c = columns;
+        // signed price in the high bits, unsigned row in the low bits: NUMERIC(8, 2) prices are at most
+        // 99999999 cents either side of zero, so they fit 32 bits and negative prices sort first
+        long[] keys = new long[c.size];
+        for (int i = 0; i < c.size; i++){
+            keys[i] = (c.priceCents[i] << 32) | (i & 0xFFFFFFFFL);
+        }
+        if (useParallel(c)){
+            Arrays.parallelSort(keys);
+        } else {
+            Arrays.sort(keys);
+        }
+        int[] rows = new int[c.size];
+        for (int i = 0; i < c.size; i++){
+            rows[i] = (int) keys[i];
+        }
+        return rows;
+    }
+
+    /**
+     * number of books per publisherID, like "SELECT publisherID, count(isbn) ... GROUP BY publisherID"
+     */
+    Map<Integer, Integer> countByPublisher(){
+        PublisherTotals totals = sumByPublisher(columns);
+        Map<Integer, Integer> counts = new TreeMap<>();
+        for (int k = 0; k < totals.ids.length; k++){
+            counts.put(totals.ids[k], (int) totals.counts[k]);
+        }
+        return counts;
+    }
+
+    /**
+     * average price per publisherID rounded to cents, like "round(avg(Titles.price),2) ... GROUP BY publisherID"
+     */
+    Map<Integer, BigDecimal> avgPriceByPublisher(){
+        PublisherTotals totals = sumByPublisher(columns);
+        Map<Integer, BigDecimal> averages = new TreeMap<>();
+        for (int k = 0; k < totals.ids.length; k++){
+            averages.put(totals.ids[k], BigDecimal.valueOf(totals.sums[k], 2)
+                    .divide(BigDecimal.valueOf(totals.counts[k]), 2, RoundingMode.HALF_UP));
+        }
+        return averages;
+    }
+
+    /**
+     * book counts and price sums in cents of the publisherIDs in ids, at the same positions
+     */
+    private static final class PublisherTotals {
+        final int[] ids;
+        final long[] counts;
+        final long[] sums;
+
+        PublisherTotals(int[] ids, long[] counts, long[] sums){
+            this.ids = ids;
+            this.counts = counts;
+            this.sums = sums;
+        }
+    }
+
+    private PublisherTotals sumByPublisher(Columns c){
+        // sorted distinct publisherIDs, so the totals are sized by the publishers and not by the largest ID
+        IntHashSet seen = new IntHashSet(64);
+        int[] ids = new int[16];
+        int distinct = 0;
+        for (int i = 0; i < c.size; i++){
+            if (seen.add(c.publisherIDs[i])){
+                if (distinct == ids.length){
+                    ids = Arrays.copyOf(ids, distinct * 2);
+                }
+                ids[distinct++] = c.publisherIDs[i];
+            }
+        }
+        int[] sorted = Arrays.copyOf(ids, distinct);
+        Arrays.sort(sorted);
+        if (!useParallel(c)){
+            return sumRange(c, 0, c.size, sorted);
+        }
+        int chunks = (c.size + CHUNK - 1) / CHUNK;
+        return IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> sumRange(c, chunk * CHUNK, Math.min(c.size, (chunk + 1) * CHUNK), sorted))
+                .reduce((a, b) -> {
+                    for (int k = 0; k < sorted.length; k++){
+                        a.counts[k] += b.counts[k];
+                        a.sums[k] += b.sums[k];
+                    }
+                    return a;
+                })
+                .orElse(new PublisherTotals(sorted, new long[sorted.length], new long[sorted.length]));
+    }
+
+    private static PublisherTotals sumRange(Columns c, int from, int to, int[] ids){
+        long[] counts = new long[ids.length];
+        long[] sums = new long[ids.length];
+        for (int i = from; i < to; i++){
+            int k = Arrays.binarySearch(ids, c.publisherIDs[i]);
+            counts[k]++;
+            sums[k] += c.priceCents[i];
+        }
+        return new PublisherTotals(ids, counts, sums);
+    }
+}
+
+/**
+ * Secondary indexes for the access paths of the report queries, created by Book.createTable,
+ * and an EXPLAIN check of those queries: a filtered query must seek (no full table or index
+ * scan), a listing must read an index in order, and no query may sort more than SORT_ROWS rows.
+ * InnoDB secondary indexes also hold the primary key, so e.g. (lastName, firstName) covers
+ * "SELECT * FROM Authors" and (title, isbn, years) covers printTitles, its keyset pages and the
+ * title prefix search with one full-length title key per row.
+ */
+class SchemaIndexes {
+    // largest estimated number of rows a report query may sort without an index
+    static final long SORT_ROWS = 1000;
+
+    // table, index name, columns, query served
+    static final String[][] INDEXES = {
+            {"Publishers", "idx_publishers_name", "publisherName", "booksByPublisher filter, getAllPublisher"},
+            {"Authors", "idx_authors_name", "lastName, firstName", "orderAuthorName"},
+            {"Titles", "idx_titles_title_isbn_years", "title, isbn, years", "printTitles, printTitlesPaged keyset seek, title prefix LIKE"},
+            {"Titles", "idx_titles_publisher_title", "publisherID, title, years", "booksByPublisher join and order"},
+            {"AuthorISBN", "idx_authorisbn_isbn", "isbn, authorID", "authors of a title"},
+    };
+
+    // table, index name: indexes of earlier versions that the ones above replace
+    static final String[][] RETIRED = {
+            {"Titles", "idx_titles_title"},
+            {"Titles", "idx_titles_title_isbn"},
+    };
+
+    // query name, SQL, parameter (or null), whether the query reads the whole table by design
+    static final String[][] QUERIES = {
+            {"orderAuthorName", Book.ORDER_AUTHOR_NAME_SQL, null, "listing"},
+            {"getAllPublisher", Book.ALL_PUBLISHERS_SQL, null, "listing"},
+            {"booksByPublisher", Book.BOOKS_BY_PUBLISHER_SQL, "IEEE", "filter"},
+            {"printTitles", Book.PRINT_TITLES_SQL, null, "listing"},
+            {"bookStartByHarryPotter", Book.TITLE_PREFIX_SQL, "Harry Potter%", "filter"},
+    };
+
+    /**
+     * create every declared index that does not exist yet and drop the retired ones
+     * @param conn
+     * @throws SQLException
+     */
+    static void create(Connection conn) throws SQLException {
+        try (PreparedStatement exists = conn.prepareStatement(
+                "SELECT 1 FROM information_schema.statistics " +
+                        "WHERE table_schema = DATABASE() AND LOWER(table_name) = LOWER(?) AND index_name = ?");
+             Statement stmt = conn.createStatement()){
+            for (String[] index : INDEXES){
+                exists.setString(1, index[0]);
+                exists.setString(2, index[1]);
+                boolean found;
+                try (ResultSet rs = exists.executeQuery()){
+                    found = rs.next();
+                }
+                if (!found){
+                    stmt.executeUpdate("CREATE INDEX " + index[1] + " ON " + index[0] + "(" + index[2] + ")");
+                    System.out.println("Index " + index[1] + " on " + index[0] + "(" + index[2] + ") created.");
+                }
+            }
+            for (String[] index : RETIRED){
+                exists.setString(1, index[0]);
+                exists.setString(2, index[1]);
+                boolean found;
+                try (ResultSet rs = exists.executeQuery()){
+                    found = rs.next();
+                }
+                if (found){
+                    stmt.executeUpdate("DROP INDEX " + index[1] + " ON " + index[0]);
+                    System.out.println("Index " + index[1] + " on " + index[0] + " dropped.");
+                }
+            }
+        }
+    }
+
+    /**
+     * EXPLAIN every report query and print its plan
+     * @param conn
+     * @throws SQLException if a query scans a whole table (access type ALL), a filtered query scans
+     * a whole index (type index) or a query sorts more than SORT_ROWS rows without an index
+     */
+    static void verify(Connection conn) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        System.out.println();
+        System.out.println("========== Access paths of the report queries =========");
+        String leftAlignFormat = "| %-22s | %-12s | %-8s | %-28s | %10d | %-30s |%n";
+        String border = "+------------------------+--------------+----------+------------------------------+------------+--------------------------------+%n";
+        System.out.format(border);
+        System.out.format("| query                  | table        | type     | key                          | rows       | extra                          |%n");
+        System.out.format(border);
+        for (String[] query : QUERIES){
+            boolean listing = query[3].equals("listing");
+            // estimated rows produced by the join, which a filesort has to sort
+            double joinRows = 1;
+            boolean filesort = false;
+            try (PreparedStatement explain = conn.prepareStatement("EXPLAIN " + query[1])){
+                if (query[2] != null){
+                    explain.setString(1, query[2]);
+                }
+                try (ResultSet rs = explain.executeQuery()){
+                    while (rs.next()){
+                        String table = rs.getString("table");
+                        String type = rs.getString("type");
+                        String key = rs.getString("key");
+                        long rows = rs.getLong("rows");
+                        double filtered = rs.getDouble("filtered");
+                        String extra = rs.getString("Extra");
+                        System.out.format(leftAlignFormat, query[0], table, type, key, rows, extra == null ? "" : extra);
+                        if ("ALL".equalsIgnoreCase(type)){
+                            problems.add(query[0] + " scans table " + table);
+                        } else if (!listing && "index".equalsIgnoreCase(type)){
+                            problems.add(query[0] + " scans the whole index " + key + " of " + table);
+                        }
+                        joinRows *= Math.max(1, rows * (filtered > 0 ? filtered / 100 : 1));
+                        filesort |= extra != null && extra.contains("Using filesort");
+                    }
+                }
+            }
+            if (filesort && joinRows > SORT_ROWS){
+                problems.add(query[0] + " sorts about " + Math.round(joinRows) + " rows without an index");
+            }
+        }
+        System.out.format(border);
+        if (!problems.isEmpty()){
+            throw new SQLException("Report queries without a usable index: " + String.join(", ", problems));
+        }
+        System.out.println("Every filtered report query seeks an index and no query sorts more than " + SORT_ROWS + " rows.");
+    }
+}
+
+/**
+ * In-process full-text index over book titles.
+ * Titles are split into lower-case terms; each term has a postings list of document ids and
+ * each trigram of a term has a list of term ids, both stored as delta-encoded varint byte arrays
+ * with a skip entry every Postings.SKIP values. Queries are AND-ed clauses: a term, a prefix
+ * (harr*), a suffix (*ter), an infix (*coin*, the last two found through the trigrams) or a
+ * "quoted phrase". Each clause is a cursor over its documents; the rarest clause leads and the
+ * others jump ahead to its candidates through the skip entries, so a common term costs about
+ * one block per candidate instead of a full decode. Hits are ranked by match quality: exact
+ * terms score higher than prefixes and suffixes, those higher than infixes, and shorter titles
+ * win ties. add() indexes a new title (or a new version of one) without a rebuild.
+ */
+class TitleSearchIndex {
+    static final int NO_MORE = Integer.MAX_VALUE;
+
+    static class Hit {
+        final String isbn;
+        final String title;
+        final double score;
+
+        Hit(String isbn, String title, double score){
+            this.isbn = isbn;
+            this.title = title;
+            this.score = score;
+        }
+    }
+
+    /**
+     * append-only sorted int list stored as varint deltas, with the value and byte offset of
+     * every SKIP-th entry so a cursor can jump over whole blocks
+     */
+    static class Postings {
+        static final int SKIP = 64;
+
+        private byte[] data = new byte[8];
+        private int length;
+        private int count;
+        private int last = -1;
+        // skip entry k: the value at index (k + 1) * SKIP - 1 and the offset of the byte after it
+        private int[] skipValues = new int[0];
+        private int[] skipOffsets = new int[0];
+        private int skips;
+
+        void add(int value){
+            if (value == last){
+                return;
+            }
+            int delta = value - last;
+            last = value;
+            count++;
+            if (length + 5 > data.length){
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7F) != 0){
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            if (count % SKIP == 0){
+                if (skips == skipValues.length){
+                    skipValues = Arrays.copyOf(skipValues, Math.max(4, skips * 2));
+                    skipOffsets = Arrays.copyOf(skipOffsets, skipValues.length);
+                }
+                skipValues[skips] = value;
+                skipOffsets[skips] = length;
+                skips++;
+            }
+        }
+
+        int size(){
+            return count;
+        }
+
+        Cursor cursor(){
+            return new Cursor(this);
+        }
+    }
+
+    /**
+     * documents in increasing order; doc() is -1 before the first advance and NO_MORE at the end
+     */
+    abstract static class DocIterator {
+        abstract int doc();
+
+        /**
+         * @return the first document at or after target
+         */
+        abstract int advance(int target);
+
+        /**
+         * @return an upper bound of the number of documents, used to pick the leading clause
+         */
+        abstract long cost();
+    }
+
+    static class Cursor extends DocIterator {
+        private final Postings list;
+        private int index = -1;
+        private int pos;
+        private int value = -1;
+
+        Cursor(Postings list){
+            this.list = list;
+        }
+
+        @Override
+        int doc(){
+            return value;
+        }
+
+        private int next(){
+            if (++index >= list.count){
+                return value = NO_MORE;
+            }
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = list.data[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value += delta;
+        }
+
+        @Override
+        int advance(int target){
+            if (value >= target){
+                return value;
+            }
+            // the last skip entry below target, searched from the current block on
+            int lo = Math.max(0, (index + 1) / Postings.SKIP - 1);
+            int hi = list.skips - 1;
+            int skip = -1;
+            while (lo <= hi){
+                int mid = (lo + hi) >>> 1;
+                if (list.skipValues[mid] < target){
+                    skip = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (skip >= 0 && (skip + 1) * Postings.SKIP - 1 > index){
+                index = (skip + 1) * Postings.SKIP - 1;
+                pos = list.skipOffsets[skip];
+                value = list.skipValues[skip];
+            }
+            while (value < target){
+                next();
+            }
+            return value;
+        }
+
+        @Override
+        long cost(){
+            return list.count;
+        }
+    }
+
+    /**
+     * documents in any of the lists (a prefix, suffix or infix clause)
+     */
+    static class Union extends DocIterator {
+        private final PriorityQueue<DocIterator> heads = new PriorityQueue<>((a, b) -> Integer.compare(a.doc(), b.doc()));
+        private final long cost;
+        private int doc = -1;
+
+        Union(List<? extends DocIterator> iterators){
+            long total = 0;
+            for (DocIterator iterator : iterators){
+                heads.add(iterator);
+                total += iterator.cost();
+            }
+            cost = total;
+        }
+
+        @Override
+        int doc(){
+            return doc;
+        }
+
+        @Override
+        int advance(int target){
+            while (!heads.isEmpty() && heads.peek().doc() < target){
+                DocIterator head = heads.poll();
+                if (head.advance(target) != NO_MORE){
+                    heads.add(head);
+                }
+            }
+            return doc = heads.isEmpty() ? NO_MORE : heads.peek().doc();
+        }
+
+        @Override
+        long cost(){
+            return cost;
+        }
+    }
+
+    /**
+     * documents in all of the lists; the cheapest leads and the others are probed at its candidates
+     */
+    static class Intersection extends DocIterator {
+        private final DocIterator[] iterators;
+        private int doc = -1;
+
+        Intersection(List<? extends DocIterator> list){
+            iterators = list.toArray(new DocIterator[0]);
+            Arrays.sort(iterators, (a, b) -> Long.compare(a.cost(), b.cost()));
+        }
+
+        @Override
+        int doc(){
+            return doc;
+        }
+
+        @Override
+        int advance(int target){
+            int candidate = iterators[0].advance(target);
+            next:
+            while (candidate != NO_MORE){
+                for (int i = 1; i < iterators.length; i++){
+                    int found = iterators[i].advance(candidate);
+                    if (found > candidate){
+                        candidate = iterators[0].advance(found);
+                        continue next;
+                    }
+                }
+                return doc = candidate;
+            }
+            return doc = NO_MORE;
+        }
+
+        @Override
+        long cost(){
+            return iterators[0].cost();
+        }
+    }
+
+    private static final int TERM = 0;
+    private static final int PREFIX = 1;
+    private static final int SUFFIX = 2;
+    private static final int INFIX = 3;
+    private static final int PHRASE = 4;
+
+    private static class Clause {
+        final int kind;
+        final String text;
+        final String[] words;
+        // resolved by match(): the id of text (-1 if it is not a term) and the ids of the phrase words
+        int termId = -1;
+        int[] wordIds;
+
+        Clause(int kind, String text, String[] words){
+            this.kind = kind;
+            this.text = text;
+            this.words = words;
+        }
+    }
+
+    private final TreeMap<String, Integer> termIds = new TreeMap<>();
+    private final List<String> terms = new ArrayList<>();
+    private final List<Postings> postings = new ArrayList<>();
+    private final Map<String, Postings> trigrams = new HashMap<>();
+    private final List<String> isbns = new ArrayList<>();
+    private final List<String> titles = new ArrayList<>();
+    // the term ids of every title in order, as varints; title doc starts at docTermStart[doc]
+    private byte[] docTermBytes = new byte[1024];
+    private int docTermLength;
+    private int[] docTermStart = new int[256];
+    private final Map<String, Integer> docOfIsbn = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+
+    /**
+     * index every title of the Titles table
+     */
+    static TitleSearchIndex load(Connection conn) throws SQLException {
+        TitleSearchIndex index = new TitleSearchIndex();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT isbn, title FROM Titles")){
+            while (rs.next()){
+                index.add(rs.getString(1), rs.getString(2));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * index a title; a title already indexed under the same isbn is replaced
+     */
+    synchronized void add(String isbn, String title){
+        Integer old = docOfIsbn.get(isbn);
+        if (old != null){
+            deleted.set(old);
+        }
+        int doc = titles.size();
+        if (doc == docTermStart.length){
+            docTermStart = Arrays.copyOf(docTermStart, doc * 2);
+        }
+        docTermStart[doc] = docTermLength;
+        for (String word : tokenize(title)){
+            int id = termId(word);
+            postings.get(id).add(doc);
+            appendDocTerm(id);
+        }
+        isbns.add(isbn);
+        titles.add(title);
+        docOfIsbn.put(isbn, doc);
+    }
+
+    private void appendDocTerm(int id){
+        if (docTermLength + 5 > docTermBytes.length){
+            docTermBytes = Arrays.copyOf(docTermBytes, docTermBytes.length * 2);
+        }
+        while ((id & ~0x7F) != 0){
+            docTermBytes[docTermLength++] = (byte) ((id & 0x7F) | 0x80);
+            id >>>= 7;
+        }
+        docTermBytes[docTermLength++] = (byte) id;
+    }
+
+    /**
+     * @return the term ids of a title in order
+     */
+    private int[] docTerms(int doc){
+        int pos = docTermStart[doc];
+        int end = doc + 1 < titles.size() ? docTermStart[doc + 1] : docTermLength;
+        int[] ids = new int[end - pos];
+        int n = 0;
+        while (pos < end){
+            int id = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = docTermBytes[pos++];
+                id |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            ids[n++] = id;
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    synchronized int size(){
+        return docOfIsbn.size();
+    }
+
+    private int termId(String term){
+        Integer id = termIds.get(term);
+        if (id == null){
+            id = terms.size();
+            termIds.put(term, id);
+            terms.add(term);
+            postings.add(new Postings());
+            for (int i = 0; i + 3 <= term.length(); i++){
+                trigrams.computeIfAbsent(term.substring(i, i + 3), k -> new Postings()).add(id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * lower-case letter/digit runs of the text
+     */
+    static List<String> tokenize(String text){
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++){
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)){
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0){
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * split a query into clauses: "quoted phrase", *infix*, *suffix, prefix* and plain terms
+     */
+    static List<Clause> parse(String query){
+        List<Clause> clauses = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()){
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)){
+                i++;
+            } else if (c == '"'){
+                int end = query.indexOf('"', i + 1);
+                if (end < 0){
+                    end = query.length();
+                }
+                List<String> words = tokenize(query.substring(i + 1, end));
+                if (words.size() == 1){
+                    clauses.add(new Clause(TERM, words.get(0), null));
+                } else if (!words.isEmpty()){
+                    clauses.add(new Clause(PHRASE, null, words.toArray(new String[0])));
+                }
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end))){
+                    end++;
+                }
+                String token = query.substring(i, end);
+                boolean leading = token.startsWith("*");
+                boolean trailing = token.endsWith("*");
+                for (String word : tokenize(token)){
+                    int kind = leading ? (trailing ? INFIX : SUFFIX) : trailing ? PREFIX : TERM;
+                    clauses.add(new Clause(kind, word, null));
+                }
+                i = end;
+            }
+        }
+        return clauses;
+    }
+
+    /**
+     * @param query see parse
+     * @param limit maximum number of hits
+     * @return hits ordered by score, best first
+     */
+    synchronized List<Hit> search(String query, int limit){
+        List<Clause> clauses = parse(query);
+        List<DocIterator> iterators = new ArrayList<>();
+        for (Clause clause : clauses){
+            DocIterator iterator = match(clause);
+            if (iterator == null){
+                return new ArrayList<>();
+            }
+            iterators.add(iterator);
+        }
+        if (iterators.isEmpty() || limit <= 0){
+            return new ArrayList<>();
+        }
+        // the best limit hits so far, worst on top
+        Comparator<Hit> order = (a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : a.title.compareTo(b.title);
+        PriorityQueue<Hit> best = new PriorityQueue<>(order.reversed());
+        DocIterator docs = iterators.size() == 1 ? iterators.get(0) : new Intersection(iterators);
+        for (int doc = docs.advance(0); doc != NO_MORE; doc = docs.advance(doc + 1)){
+            if (deleted.get(doc)){
+                continue;
+            }
+            double score = score(doc, clauses);
+            if (score > 0 && (best.size() < limit || score >= best.peek().score)){
+                best.add(new Hit(isbns.get(doc), titles.get(doc), score));
+                if (best.size() > limit){
+                    best.poll();
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(order);
+        return hits;
+    }
+
+    /**
+     * the documents of one clause, or null when no document can match
+     */
+    private DocIterator match(Clause clause){
+        if (clause.text != null){
+            clause.termId = termIds.getOrDefault(clause.text, -1);
+        }
+        switch (clause.kind){
+            case TERM: {
+                Integer id = termIds.get(clause.text);
+                return id == null ? null : postings.get(id).cursor();
+            }
+            case PREFIX:
+                return union(termIds.subMap(clause.text, true, clause.text + Character.MAX_VALUE, false).values());
+            case SUFFIX:
+                return union(fragmentTerms(clause.text, true));
+            case INFIX:
+                return union(fragmentTerms(clause.text, false));
+            default: {
+                List<DocIterator> words = new ArrayList<>();
+                clause.wordIds = new int[clause.words.length];
+                for (int i = 0; i < clause.words.length; i++){
+                    Integer id = termIds.get(clause.words[i]);
+                    if (id == null){
+                        return null;
+                    }
+                    clause.wordIds[i] = id;
+                    words.add(postings.get(id).cursor());
+                }
+                return new Intersection(words);
+            }
+        }
+    }
+
+    /**
+     * ids of the terms containing (or ending with) fragment, found by intersecting the term lists of its trigrams
+     */
+    private List<Integer> fragmentTerms(String fragment, boolean suffix){
+        List<Integer> ids = new ArrayList<>();
+        if (fragment.length() < 3){
+            for (int id = 0; id < terms.size(); id++){
+                if (suffix ? terms.get(id).endsWith(fragment) : terms.get(id).contains(fragment)){
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+        List<Cursor> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= fragment.length(); i++){
+            Postings list = trigrams.get(fragment.substring(i, i + 3));
+            if (list == null){
+                return ids;
+            }
+            lists.add(list.cursor());
+        }
+        DocIterator candidates = new Intersection(lists);
+        for (int id = candidates.advance(0); id != NO_MORE; id = candidates.advance(id + 1)){
+            if (suffix ? terms.get(id).endsWith(fragment) : terms.get(id).contains(fragment)){
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private DocIterator union(Collection<Integer> termList){
+        if (termList.isEmpty()){
+            return null;
+        }
+        List<Cursor> lists = new ArrayList<>();
+        for (int id : termList){
+            lists.add(postings.get(id).cursor());
+        }
+        return lists.size() == 1 ? lists.get(0) : new Union(lists);
+    }
+
+    /**
+     * exact term 3, prefix or suffix 2, infix 1, phrase 2 per word plus 2; 0 if a phrase is not consecutive.
+     * Dividing by title length ranks shorter, more focused titles first.
+     */
+    private double score(int doc, List<Clause> clauses){
+        int[] ids = docTerms(doc);
+        double score = 0;
+        for (Clause clause : clauses){
+            switch (clause.kind){
+                case TERM:
+                    score += 3;
+                    break;
+                case PREFIX:
+                case SUFFIX:
+                    score += contains(ids, clause.termId) ? 3 : 2;
+                    break;
+                case INFIX:
+                    score += contains(ids, clause.termId) ? 3 : 1;
+                    break;
+                default:
+                    if (!containsPhrase(ids, clause.wordIds)){
+                        return 0;
+                    }
+                    score += 2 * clause.words.length + 2;
+            }
+        }
+        return score + score / (ids.length + 1);
+    }
+
+    private static boolean contains(int[] ids, int id){
+        for (int termId : ids){
+            if (termId == id){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsPhrase(int[] ids, int[] words){
+        for (int start = 0; start + words.length <= ids.length; start++){
+            int k = 0;
+            while (k < words.length && ids[start + k] == words[k]){
+                k++;
+            }
+            if (k == words.length){
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+/**
+ * Buffered writer for the report tables.
+ * A Layout precomputes the border, header and column widths once; rows are appended cell by
+ * cell into a per-thread char buffer that is encoded into a reusable byte buffer and written
+ * to System.out (or the --reportFile channel) in chunks of BUFFER_SIZE characters, instead of
+ * one format string per row. Tables are written fixed-width (the default), CSV or TSV.
+ * Report headings and result lines go through open(layout, heading), println and printf, so the
+ * report file holds the whole report and not just the table bodies. While ReportRunner runs chains
+ * concurrently, each chain's report file output is captured and written in chain order afterwards.
+ */
+class TableRenderer implements AutoCloseable {
+    enum Format { FIXED, CSV, TSV }
+
+    static final int BUFFER_SIZE = 32 * 1024;
+    private static final String NEWLINE = System.lineSeparator();
+    // the encoding System.out uses: stdout.encoding from JDK 19, sun.stdout.encoding on a console before
+    private static final Charset STDOUT_CHARSET = stdoutCharset();
+
+    private static volatile Format format = Format.FIXED;
+    private static FileChannel file;
+    // one table at a time in the report file
+    private static final ReentrantLock FILE_LOCK = new ReentrantLock();
+    // per-thread buffer for report file output, written to the file later in a fixed order
+    private static final ThreadLocal<OutputStream> FILE_CAPTURE = new ThreadLocal<>();
+
+    private static class Buffers {
+        final char[] chars = new char[BUFFER_SIZE];
+        final char[] digits = new char[24];
+        ByteBuffer bytes;
+        CharsetEncoder encoder;
+    }
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * column titles, widths and alignment of one kind of table
+     */
+    static class Layout {
+        private final List<String> titles = new ArrayList<>();
+        private final List<Integer> widths = new ArrayList<>();
+        private final List<Boolean> rightAligned = new ArrayList<>();
+        private String border;
+        private String fixedHeader;
+
+        Layout left(String title, int width){
+            return add(title, width, false);
+        }
+
+        Layout right(String title, int width){
+            return add(title, width, true);
+        }
+
+        private Layout add(String title, int width, boolean right){
+            titles.add(title);
+            widths.add(width);
+            rightAligned.add(right);
+            StringBuilder line = new StringBuilder("+");
+            StringBuilder header = new StringBuilder("|");
+            for (int c = 0; c < titles.size(); c++){
+                for (int i = 0; i < widths.get(c) + 2; i++){
+                    line.append('-');
+                }
+                line.append('+');
+                header.append(' ').append(titles.get(c));
+                for (int i = titles.get(c).length(); i < widths.get(c); i++){
+                    header.append(' ');
+                }
+                header.append(" |");
+            }
+            border = line.append(NEWLINE).toString();
+            fixedHeader = header.append(NEWLINE).toString();
+            return this;
+        }
+    }
+
+    private final Layout layout;
+    private final Format tableFormat;
+    private final OutputStream out;
+    private final FileChannel channel;
+    private final Buffers buffers;
+    private int length;
+    private int column;
+
+    private TableRenderer(Layout layout){
+        this.layout = layout;
+        this.tableFormat = format;
+        this.buffers = BUFFERS.get();
+        this.length = 0;
+        OutputStream captured = FILE_CAPTURE.get();
+        if (file != null && captured != null){
+            this.channel = null;
+            this.out = captured;
+        } else if (file != null){
+            FILE_LOCK.lock();
+            this.channel = file;
+            this.out = null;
+        } else {
+            this.channel = null;
+            this.out = System.out;
+        }
+        Charset charset = file != null ? StandardCharsets.UTF_8 : STDOUT_CHARSET;
+        if (buffers.encoder == null || !buffers.encoder.charset().equals(charset)){
+            buffers.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            buffers.bytes = ByteBuffer.allocate((int) (BUFFER_SIZE * buffers.encoder.maxBytesPerChar()) + 16);
+        }
+        buffers.encoder.reset();
+        buffers.bytes.clear();
+    }
+
+    /**
+     * @param format the format of every table opened from now on
+     * @param fileName write the tables to this file instead of System.out, or null
+     */
+    static synchronized void configure(Format format, String fileName) throws IOException {
+        TableRenderer.format = format;
+        closeFile();
+        if (fileName != null){
+            file = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    static synchronized void closeFile() throws IOException {
+        if (file != null){
+            file.close();
+            file = null;
+        }
+    }
+
+    /**
+     * send this thread's report file output to buffer until capture(null); no effect without a report file
+     */
+    static void capture(OutputStream buffer){
+        if (buffer == null){
+            FILE_CAPTURE.remove();
+        } else {
+            FILE_CAPTURE.set(buffer);
+        }
+    }
+
+    /**
+     * append captured output to the report file
+     */
+    static void writeFile(byte[] bytes){
+        FileChannel channel = file;
+        if (channel == null || bytes.length == 0){
+            return;
+        }
+        write(channel, ByteBuffer.wrap(bytes));
+    }
+
+    private static void write(FileChannel channel, ByteBuffer bytes){
+        FILE_LOCK.lock();
+        try {
+            while (bytes.hasRemaining()){
+                channel.write(bytes);
+            }
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        } finally {
+            FILE_LOCK.unlock();
+        }
+    }
+
+    private static Charset stdoutCharset(){
+        for (String property : new String[]{"stdout.encoding", "sun.stdout.encoding"}){
+            String name = System.getProperty(property);
+            if (name != null && Charset.isSupported(name)){
+                return Charset.forName(name);
+            }
+        }
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * write one report line to the report file, or to System.out
+     */
+    static void println(String line){
+        FileChannel channel = file;
+        if (channel == null){
+            System.out.println(line);
+            return;
+        }
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(line + NEWLINE);
+        OutputStream captured = FILE_CAPTURE.get();
+        if (captured == null){
+            write(channel, bytes);
+            return;
+        }
+        try {
+            captured.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * println with a format string; the format supplies the line end
+     */
+    static void printf(String format, Object... args){
+        String text = String.format(format, args);
+        println(text.endsWith(NEWLINE) ? text.substring(0, text.length() - NEWLINE.length()) : text);
+    }
+
+    /**
+     * start a table: the header is written now, the footer by close()
+     */
+    static TableRenderer open(Layout layout){
+        return open(layout, null, false);
+    }
+
+    /**
+     * start a table below a blank line and a heading, written together with the table
+     * @param heading the heading, or null for just the blank line
+     */
+    static TableRenderer open(Layout layout, String heading){
+        return open(layout, heading, true);
+    }
+
+    private static TableRenderer open(Layout layout, String heading, boolean blankLine){
+        TableRenderer table = new TableRenderer(layout);
+        if (blankLine){
+            table.append(NEWLINE);
+        }
+        if (heading != null){
+            table.append(heading);
+            table.append(NEWLINE);
+        }
+        switch (table.tableFormat){
+            case FIXED:
+                table.append(layout.border);
+                table.append(layout.fixedHeader);
+                table.append(layout.border);
+                break;
+            default:
+                for (String title : layout.titles){
+                    table.text(title);
+                }
+                table.endRow();
+        }
+        return table;
+    }
+
+    TableRenderer text(String value){
+        String s = value == null ? "" : value;
+        switch (tableFormat){
+            case FIXED:
+                startCell();
+                int pad = layout.widths.get(column) - s.length();
+                if (layout.rightAligned.get(column)){
+                    pad(pad);
+                    append(s);
+                } else {
+                    append(s);
+                    pad(pad);
+                }
+                break;
+            case CSV:
+                startCell();
+                if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0){
+                    append('"');
+                    for (int i = 0; i < s.length(); i++){
+                        char c = s.charAt(i);
+                        if (c == '"'){
+                            append('"');
+                        }
+                        append(c);
+                    }
+                    append('"');
+                } else {
+                    append(s);
+                }
+                break;
+            default:
+                startCell();
+                for (int i = 0; i < s.length(); i++){
+                    char c = s.charAt(i);
+                    append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+                }
+        }
+        column++;
+        return this;
+    }
+
+    TableRenderer number(long value){
+        char[] digits = buffers.digits;
+        int pos = digits.length;
+        long v = Math.abs(value);
+        do {
+            digits[--pos] = (char) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (value < 0){
+            digits[--pos] = '-';
+        }
+        return cell(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * @param value written with a fixed number of decimals, rounded half up
+     */
+    TableRenderer decimal(double value, int decimals){
+        long scale = 1;
+        for (int i = 0; i < decimals; i++){
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        boolean negative = value < 0 && scaled != 0;
+        char[] digits = buffers.digits;
+        int pos = digits.length;
+        for (int i = 0; i < decimals; i++){
+            digits[--pos] = (char) ('0' + scaled % 10);
+            scaled /= 10;
+        }
+        if (decimals > 0){
+            digits[--pos] = '.';
+        }
+        do {
+            digits[--pos] = (char) ('0' + scaled % 10);
+            scaled /= 10;
+        } while (scaled != 0);
+        if (negative){
+            digits[--pos] = '-';
+        }
+        return cell(digits, pos, digits.length - pos);
+    }
+
+    private TableRenderer cell(char[] chars, int from, int count){
+        startCell();
+        int pad = tableFormat == Format.FIXED ? layout.widths.get(column) - count : 0;
+        boolean right = layout.rightAligned.get(column);
+        if (right){
+            pad(pad);
+        }
+        for (int i = from; i < from + count; i++){
+            append(chars[i]);
+        }
+        if (!right){
+            pad(pad);
+        }
+        column++;
+        return this;
+    }
+
+    TableRenderer endRow(){
+        if (tableFormat == Format.FIXED){
+            append(" |");
+        }
+        append(NEWLINE);
+        column = 0;
+        return this;
+    }
+
+    /**
+     * write the footer and everything still buffered
+     */
+    @Override
+    public void close(){
+        try {
+            if (tableFormat == Format.FIXED){
+                append(layout.border);
+            }
+            flushChars(true);
+            if (out != null){
+                out.flush();
+            }
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        } finally {
+            if (channel != null){
+                FILE_LOCK.unlock();
+            }
+        }
+    }
+
+    private void startCell(){
+        if (tableFormat == Format.FIXED){
+            append(column == 0 ? "| " : " | ");
+        } else if (column > 0){
+            append(tableFormat == Format.CSV ? ',' : '\t');
+        }
+    }
+
+    private void pad(int count){
+        for (int i = 0; i < count; i++){
+            append(' ');
+        }
+    }
+
+    private void append(char c){
+        if (length == BUFFER_SIZE){
+            flushChars(false);
+        }
+        buffers.chars[length++] = c;
+    }
+
+    private void append(String s){
+        int from = 0;
+        while (from < s.length()){
+            if (length == BUFFER_SIZE){
+                flushChars(false);
+            }
+            int count = Math.min(s.length() - from, BUFFER_SIZE - length);
+            s.getChars(from, from + count, buffers.chars, length);
+            length += count;
+            from += count;
+        }
+    }
+
+    /**
+     * encode the buffered characters and write them out; a trailing half surrogate pair waits for the next chunk
+     */
+    private void flushChars(boolean last){
+        CharBuffer in = CharBuffer.wrap(buffers.chars, 0, length);
+        CharsetEncoder encoder = buffers.encoder;
+        CoderResult result;
+        do {
+            result = encoder.encode(in, buffers.bytes, last);
+            writeBytes();
+        } while (result.isOverflow());
+        if (last){
+            while (encoder.flush(buffers.bytes).isOverflow()){
+                writeBytes();
+            }
+            writeBytes();
+        }
+        int left = in.remaining();
+        System.arraycopy(buffers.chars, in.position(), buffers.chars, 0, left);
+        length = left;
+    }
+
+    private void writeBytes(){
+        ByteBuffer bytes = buffers.bytes;
+        bytes.flip();
+        try {
+            if (channel != null){
+                while (bytes.hasRemaining()){
+                    channel.write(bytes);
+                }
+            } else {
+                out.write(bytes.array(), 0, bytes.limit());
+            }
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        bytes.clear();
+    }
+}
+
+/**
+ * Micro-benchmarks for the parsing, loading and report query paths, run with
+ *   java -classpath mysql-connector-java-8.0.19.jar Products.java benchmark BookDataNEW.txt [--name=value ...]
+ * Each benchmark is warmed up for --warmup=5 iterations and measured for --iterations=10; an iteration
+ * repeats the operation for at least --iterationMillis=200 and reports the average time per operation.
+ * Inserts and queries run against a StandInDatabase by default, so they measure the client side
+ * (parsing, statement binding, batching, result formatting) offline; --rttMicros=N adds a simulated
+ * round trip to every execute and commit. With --url, --user and --password they run against that
+ * database instead. Results are printed and written to --out=benchmark.json in the JMH JSON layout.
+ */
+class BookBenchmark {
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    private static class Benchmark {
+        final String name;
+        final Operation setup;
+        final Operation operation;
+
+        Benchmark(String name, Operation setup, Operation operation){
+            this.name = name;
+            this.setup = setup;
+            this.operation = operation;
+        }
+    }
+
+    private static class Result {
+        final String name;
+        final double[] millisPerOp;
+
+        Result(String name, double[] millisPerOp){
+            this.name = name;
+            this.millisPerOp = millisPerOp;
+        }
+
+        double mean(){
+            double sum = 0;
+            for (double v : millisPerOp){
+                sum += v;
+            }
+            return sum / millisPerOp.length;
+        }
+
+        double stdDev(){
+            double mean = mean();
+            double sum = 0;
+            for (double v : millisPerOp){
+                sum += (v - mean) * (v - mean);
+            }
+            return millisPerOp.length > 1 ? Math.sqrt(sum / (millisPerOp.length - 1)) : 0;
+        }
+
+        /**
+         * @return half-width of the 99.9% confidence interval of the mean, as JMH reports it; NaN for one iteration
+         */
+        double scoreError(){
+            int n = millisPerOp.length;
+            return n > 1 ? studentT(0.9995, n - 1) * stdDev() / Math.sqrt(n) : Double.NaN;
+        }
+    }
+
+    /**
+     * quantile of Student's t distribution, found by bisection on its distribution function
+     */
+    static double studentT(double p, int degrees){
+        double lo = 0;
+        double hi = 1;
+        while (tDistribution(hi, degrees) < p){
+            hi *= 2;
+        }
+        for (int i = 0; i < 100; i++){
+            double mid = (lo + hi) / 2;
+            if (tDistribution(mid, degrees) < p){
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return (lo + hi) / 2;
+    }
+
+    static double tDistribution(double t, int degrees){
+        double tail = 0.5 * incompleteBeta(degrees / 2.0, 0.5, degrees / (degrees + t * t));
+        return t >= 0 ? 1 - tail : tail;
+    }
+
+    /**
+     * regularized incomplete beta function I_x(a, b), by its continued fraction (Numerical Recipes 6.4)
+     */
+    static double incompleteBeta(double a, double b, double x){
+        if (x <= 0){
+            return 0;
+        }
+        if (x >= 1){
+            return 1;
+        }
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x));
+        if (x < (a + 1) / (a + b + 2)){
+            return front * betaFraction(a, b, x) / a;
+        }
+        return 1 - front * betaFraction(b, a, 1 - x) / b;
+    }
+
+    private static double betaFraction(double a, double b, double x){
+        double tiny = 1e-300;
+        double c = 1;
+        double d = 1 - (a + b) * x / (a + 1);
+        d = 1 / (Math.abs(d) < tiny ? tiny : d);
+        double h = d;
+        for (int m = 1; m <= 300; m++){
+            int m2 = 2 * m;
+            double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+            d = 1 + aa * d;
+            c = 1 + aa / c;
+            d = 1 / (Math.abs(d) < tiny ? tiny : d);
+            c = Math.abs(c) < tiny ? tiny : c;
+            h *= d * c;
+            aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+            d = 1 + aa * d;
+            c = 1 + aa / c;
+            d = 1 / (Math.abs(d) < tiny ? tiny : d);
+            c = Math.abs(c) < tiny ? tiny : c;
+            double delta = d * c;
+            h *= delta;
+            if (Math.abs(delta - 1) < 1e-15){
+                break;
+            }
+        }
+        return h;
+    }
+
+    // Lanczos approximation, g = 7
+    private static final double[] LANCZOS = {0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+            771.32342877765313, -176.61502916214059, 12.507343278686905, -0.13857109526572012,
+            9.9843695780195716e-6, 1.5056327351493116e-7};
+
+    static double logGamma(double x){
+        if (x < 0.5){
+            return Math.log(Math.PI / Math.sin(Math.PI * x)) - logGamma(1 - x);
+        }
+        x -= 1;
+        double sum = LANCZOS[0];
+        for (int i = 1; i < LANCZOS.length; i++){
+            sum += LANCZOS[i] / (x + i);
+        }
+        double t = x + 7.5;
+        return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(sum);
+    }
+
+    private final Map<String, String> params = new LinkedHashMap<>();
+    private final List<Benchmark> benchmarks = new ArrayList<>();
+
+    static void main(String[] args) throws Exception {
+        if (args.length < 2){
+            System.out.println("usage: benchmark <data file> [--name=value ...]");
+            return;
+        }
+        new BookBenchmark().run(args);
+    }
+
+    private static String option(String[] args, String name, String defaultValue){
+        String prefix = "--" + name + "=";
+        for (int i = 2; i < args.length; i++){
+            if (args[i].startsWith(prefix)){
+                return args[i].substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    private void run(String[] args) throws Exception {
+        String fileName = args[1];
+        int warmup = Integer.parseInt(option(args, "warmup", "5"));
+        int iterations = Integer.parseInt(option(args, "iterations", "10"));
+        long iterationNanos = Long.parseLong(option(args, "iterationMillis", "200")) * 1_000_000L;
+        int batchSize = Integer.parseInt(option(args, "batchSize", "1000"));
+        long rttMicros = Long.parseLong(option(args, "rttMicros", "0"));
+        String url = option(args, "url", null);
+        String out = option(args, "out", "benchmark.json");
+        params.put("file", fileName);
+        params.put("batchSize", String.valueOf(batchSize));
+        params.put("database", url == null ? "stand-in" : url);
+        params.put("rttMicros", String.valueOf(rttMicros));
+
+        Connection conn;
+        Operation resetTables;
+        if (url == null){
+            StandInDatabase db = StandInDatabase.fromFile(fileName, rttMicros * 1000);
+            conn = db.connect();
+            resetTables = () -> { };
+        } else {
+            conn = Book.getConnection(url, option(args, "user", "root"), option(args, "password", ""));
+            Connection real = conn;
+            String[] tables = {"AuthorISBN", "Authors", "Titles", "Publishers"};
+            // IF EXISTS: a fresh database has no tables to drop on the first reset
+            resetTables = () -> {
+                try (Statement drop = real.createStatement()){
+                    for (String table : tables){
+                        drop.executeUpdate("DROP TABLE IF EXISTS " + table);
+                    }
+                }
+                Book.createTable(real);
+            };
+        }
+
+        add("parse.split", null, () -> parseSplit(fileName));
+        add("parse.mmap", null, () -> parseMapped(fileName));
+        add("insert.rowByRow", resetTables, () -> Book.loadRowByRow(conn, fileName, new LoadStats()));
+        add("insert.batch", resetTables, () -> Book.loadBatch(conn, fileName, batchSize, null, new LoadStats()));
+        add("insert.multiRow", resetTables, () -> Book.loadMultiRow(conn, fileName, batchSize,
+                Integer.parseInt(option(args, "rowsPerStatement", "512")), new LoadStats()));
+
+        Statement stmt = conn.createStatement();
+        Operation loaded = () -> {
+            if (url != null){
+                resetTables.run();
+                Book.loadBatch(conn, fileName, batchSize, null, new LoadStats());
+            }
+        };
+        add("query.orderAuthorName", null, () -> Book.orderAuthorName(stmt));
+        add("query.getAllPublisher", null, () -> Book.getAllPublisher(stmt));
+        add("query.booksByPublisher", null, () -> {
+            Book.booksByPublisherCache.invalidateAll();
+            Book.booksByPublisher(stmt, "IEEE");
+        });
+        add("query.booksByPublisher.cached", null, () -> Book.booksByPublisher(stmt, "IEEE"));
+        add("query.printTitles", null, () -> Book.printTitles(stmt));
+
+        PrintStream console = System.out;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Benchmark benchmark : benchmarks){
+                if (benchmark.name.equals("query.orderAuthorName")){
+                    System.setOut(discard);
+                    loaded.run();
+                }
+                System.setOut(discard);
+                for (int i = 0; i < warmup; i++){
+                    iteration(benchmark, iterationNanos);
+                }
+                double[] scores = new double[iterations];
+                for (int i = 0; i < iterations; i++){
+                    scores[i] = iteration(benchmark, iterationNanos);
+                }
+                System.setOut(console);
+                Result result = new Result(benchmark.name, scores);
+                results.add(result);
+                System.out.format("%-32s %12.4f +- %10.4f ms/op (99.9%%)%n", result.name, result.mean(), result.scoreError());
+            }
+        } finally {
+            System.setOut(console);
+            stmt.close();
+            conn.close();
+            ConnectionPool.closeAll();
+        }
+        Files.write(Paths.get(out), toJson(results, warmup, iterations, iterationNanos / 1_000_000L).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + out + ".");
+    }
+
+    private void add(String name, Operation setup, Operation operation){
+        benchmarks.add(new Benchmark(name, setup, operation));
+    }
+
+    /**
+     * @return average milliseconds per operation over one iteration; setup time is not counted
+     */
+    private static double iteration(Benchmark benchmark, long iterationNanos) throws Exception {
+        long measured = 0;
+        int ops = 0;
+        do {
+            if (benchmark.setup != null){
+                benchmark.setup.run();
+            }
+            long t0 = System.nanoTime();
+            benchmark.operation.run();
+            measured += System.nanoTime() - t0;
+            ops++;
+        } while (measured < iterationNanos);
+        return measured / 1e6 / ops;
+    }
+
+    // the line.split("\t") parsing of Book.loadRowByRow, without the inserts
+    private static long parseSplit(String fileName) throws IOException {
+        long checksum = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(fileName)))){
+            String line;
+            while ((line = br.readLine()) != null){
+                String[] rowArr = line.split("\t");
+                if (rowArr.length != 10){
+                    continue;
+                }
+                checksum += Integer.parseInt(rowArr[0]) + Integer.parseInt(rowArr[3]) + Integer.parseInt(rowArr[5]);
+                checksum += (long) Float.parseFloat(rowArr[7]) + rowArr[8].length() + rowArr[9].hashCode();
+            }
+        }
+        return checksum;
+    }
+
+    // the same fields through the memory-mapped BookDataParser of the batch loaders
+    private static long parseMapped(String fileName) throws IOException {
+        long checksum = 0;
+        try (BookDataParser parser = new BookDataParser(fileName)){
+            while (parser.next()){
+                checksum += parser.authorID() + parser.publisherID() + parser.editionNumber();
+                checksum += (long) parser.price() + parser.title().length() + parser.isbn().hashCode();
+            }
+        }
+        return checksum;
+    }
+
+    private String toJson(List<Result> results, int warmup, int iterations, long iterationMillis){
+        StringBuilder json = new StringBuilder("[\n");
+        for (int r = 0; r < results.size(); r++){
+            Result result = results.get(r);
+            json.append("    {\n");
+            json.append("        \"benchmark\" : ").append(quote("Book." + result.name)).append(",\n");
+            json.append("        \"mode\" : \"avgt\",\n");
+            // every operation runs on the calling thread of this JVM, which JMH writes as one thread and no forks
+            json.append("        \"threads\" : 1,\n");
+            json.append("        \"forks\" : 0,\n");
+            json.append("        \"jdkVersion\" : ").append(quote(System.getProperty("java.version"))).append(",\n");
+            json.append("        \"vmName\" : ").append(quote(System.getProperty("java.vm.name"))).append(",\n");
+            json.append("        \"warmupIterations\" : ").append(warmup).append(",\n");
+            json.append("        \"warmupTime\" : ").append(quote(iterationMillis + " ms")).append(",\n");
+            json.append("        \"measurementIterations\" : ").append(iterations).append(",\n");
+            json.append("        \"measurementTime\" : ").append(quote(iterationMillis + " ms")).append(",\n");
+            json.append("        \"params\" : {");
+            int p = 0;
+            for (Map.Entry<String, String> param : params.entrySet()){
+                json.append(p++ == 0 ? "\n" : ",\n");
+                json.append("            ").append(quote(param.getKey())).append(" : ").append(quote(param.getValue()));
+            }
+            json.append("\n        },\n");
+            json.append("        \"primaryMetric\" : {\n");
+            json.append("            \"score\" : ").append(result.mean()).append(",\n");
+            double error = result.scoreError();
+            json.append("            \"scoreError\" : ").append(Double.isNaN(error) ? "\"NaN\"" : String.valueOf(error)).append(",\n");
+            json.append("            \"scoreUnit\" : \"ms/op\",\n");
+            json.append("            \"rawData\" : [\n                [");
+            for (int i = 0; i < result.millisPerOp.length; i++){
+                json.append(i == 0 ? "" : ", ").append(result.millisPerOp[i]);
+            }
+            json.append("]\n            ]\n        }\n");
+            json.append(r == results.size() - 1 ? "    }\n" : "    },\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static String quote(String s){
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\'){
+                quoted.append('\\').append(c);
+            } else if (c < 0x20){
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
+
+/**
+ * In-memory JDBC stand-in for the benchmarks. Connection, statements and result sets are proxies:
+ * inserts succeed without storing anything, and the report queries return the authors, publishers
+ * and titles of the data file in the order the SQL asks for. Every execute, executeBatch and commit
+ * waits roundTripNanos to stand in for the network and server.
+ */
+class StandInDatabase {
+    private final List<String[]> authors = new ArrayList<>();    // authorID, firstName, lastName
+    private final List<String[]> publishers = new ArrayList<>(); // publisherName
+    private final List<String[]> titles = new ArrayList<>();     // title, years, isbn, publisherName
+    private final long roundTripNanos;
+
+    private StandInDatabase(long roundTripNanos){
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    static StandInDatabase fromFile(String fileName, long roundTripNanos) throws IOException {
+        StandInDatabase db = new StandInDatabase(roundTripNanos);
+        DedupRegistry registry = new DedupRegistry();
+        try (BookDataParser parser = new BookDataParser(fileName)){
+            while (parser.next()){
+                if (registry.addAuthor(parser.authorID())){
+                    db.authors.add(new String[]{String.valueOf(parser.authorID()), parser.firstName(), parser.lastName()});
+                }
+                if (registry.addPublisher(parser.publisherID())){
+                    db.publishers.add(new String[]{parser.publisherName()});
+                }
+                if (registry.addTitle(parser.isbn())){
+                    db.titles.add(new String[]{parser.title(), parser.years(), parser.isbn(), parser.publisherName()});
+                }
+            }
+        }
+        db.authors.sort((a, b) -> a[2].equals(b[2]) ? a[1].compareTo(b[1]) : a[2].compareTo(b[2]));
+        db.titles.sort((a, b) -> a[0].compareTo(b[0]));
+        return db;
+    }
+
+    Connection connect(){
+        boolean[] state = {true, false}; // autoCommit, closed
+        Connection[] self = new Connection[1];
+        self[0] = proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "prepareStatement":
+                    return statement(self[0], (String) args[0]);
+                case "createStatement":
+                    return statement(self[0], null);
+                case "getAutoCommit":
+                    return state[0];
+                case "setAutoCommit":
+                    state[0] = (Boolean) args[0];
+                    return null;
+                case "commit":
+                    roundTrip();
+                    return null;
+                case "close":
+                    state[1] = true;
+                    return null;
+                case "isClosed":
+                    return state[1];
+                case "isValid":
+                    return !state[1];
+                case "unwrap":
+                    return proxy;
+                case "getMetaData":
+                    return proxy(DatabaseMetaData.class, (p, m, a) ->
+                            m.getName().equals("getURL") ? "jdbc:standin:" : defaultValue(m.getReturnType()));
+                default:
+                    return objectMethod(proxy, method, args);
+            }
+        });
+        return self[0];
+    }
+
+    private PreparedStatement statement(Connection conn, String preparedSql){
+        Map<Integer, Object> parameters = new HashMap<>();
+        int[] batched = {0};
+        boolean[] closed = {false};
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer){
+                parameters.put((Integer) args[0], args[1]);
+                return null;
+            }
+            switch (name){
+                case "clearParameters":
+                    parameters.clear();
+                    return null;
+                case "addBatch":
+                    batched[0]++;
+                    return null;
+                case "executeBatch": {
+                    roundTrip();
+                    int[] counts = new int[batched[0]];
+                    Arrays.fill(counts, 1);
+                    batched[0] = 0;
+                    return counts;
+                }
+                case "executeUpdate":
+                    roundTrip();
+                    return 1;
+                case "executeQuery":
+                    roundTrip();
+                    return resultSet(rows(args == null ? preparedSql : (String) args[0], parameters));
+                case "getConnection":
+                    return conn;
+                case "close":
+                    closed[0] = true;
+                    return null;
+                case "isClosed":
+                    return closed[0];
+                default:
+                    return objectMethod(proxy, method, args);
+            }
+        });
+    }
+
+    private List<String[]> rows(String sql, Map<Integer, Object> parameters){
+        List<String[]> rows = new ArrayList<>();
+        if (sql.equals(Book.ORDER_AUTHOR_NAME_SQL)){
+            rows.addAll(authors);
+        } else if (sql.equals(Book.ALL_PUBLISHERS_SQL)){
+            rows.addAll(publishers);
+        } else if (sql.equals(Book.PRINT_TITLES_SQL)){
+            rows.addAll(titles);
+        } else if (sql.equals(Book.BOOKS_BY_PUBLISHER_SQL)){
+            for (String[] title : titles){
+                if (title[3].equals(parameters.get(1))){
+                    rows.add(title);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private ResultSet resultSet(List<String[]> rows){
+        int[] row = {-1};
+        boolean[] closed = {false};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "next":
+                    return ++row[0] < rows.size();
+                case "getString":
+                case "getObject":
+                    return rows.get(row[0])[(Integer) args[0] - 1];
+                case "getInt":
+                    return Integer.parseInt(rows.get(row[0])[(Integer) args[0] - 1]);
+                case "getBigDecimal":
+                    return new BigDecimal(rows.get(row[0])[(Integer) args[0] - 1]);
+                case "close":
+                    closed[0] = true;
+                    return null;
+                case "isClosed":
+                    return closed[0];
+                default:
+                    return objectMethod(proxy, method, args);
+            }
+        });
+    }
+
+    private void roundTrip(){
+        long end = System.nanoTime() + roundTripNanos;
+        while (roundTripNanos > 0 && System.nanoTime() < end){
+            Thread.onSpinWait();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler){
+        return (T) Proxy.newProxyInstance(StandInDatabase.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args){
+        switch (method.getName()){
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "StandInDatabase$" + method.getDeclaringClass().getSimpleName();
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static Object defaultValue(Class<?> type){
+        if (type == boolean.class){
+            return false;
+        }
+        if (type == int.class){
+            return 0;
+        }
+        if (type == long.class){
+            return 0L;
+        }
+        if (type == double.class){
+            return 0.0;
+        }
+        if (type == float.class){
+            return 0f;
+        }
+        if (type == short.class){
+            return (short) 0;
+        }
+        if (type == byte.class){
+            return (byte) 0;
+        }
+        return null;
+    }
+}
+
+/**
+ * Writes synthetic catalogs in the ten-column tab-separated layout of BookDataNEW.txt:
+ *   java Products.java generate BookDataBIG.txt --rows=100000000 [--name=value ...]
+ * Every title gets --authorsPerTitle=1-3 lines, one per author. Its publisher is drawn from
+ * --publishers=N with Zipfian popularity (--zipf=1.0; 0 is uniform), which sets the titles per
+ * publisher. Authors are drawn uniformly from --authors=N. Years and prices come from --years=1950-2020
+ * and --prices=5-150, and --duplicateRate=0.01 of the lines repeat an earlier line.
+ * Titles are generated in chunks of CHUNK_TITLES, each from its own seeded random stream, by --threads
+ * workers. The output for a given --seed does not depend on the number of threads.
+ */
+class CatalogGenerator {
+    static final int CHUNK_TITLES = 16384;
+
+    private static final String[] FIRST_NAMES = {
+            "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "William", "Elizabeth",
+            "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen",
+            "Wei", "Priya", "Arvind", "Devon", "Jeremy", "Yuki", "Fatima", "Carlos", "Olga", "Kwame"};
+    private static final String[] LAST_NAMES = {
+            "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+            "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin",
+            "Lee", "Narayanan", "Clark", "O'Dell", "Chen", "Tanaka", "Khan", "Silva", "Ivanova", "Mensah"};
+    private static final String[] PUBLISHERS = {
+            "ACM", "IEEE", "Springer", "O'Reilly", "Pearson", "Wiley", "Elsevier", "MIT Press", "Addison-Wesley",
+            "Manning", "No Starch Press", "Apress", "Packt", "Cambridge University Press", "Oxford University Press"};
+    private static final String[] WORDS = {
+            "Data", "Systems", "Database", "Design", "Principles", "Practice", "Modern", "Introduction", "Advanced",
+            "Distributed", "Networks", "Algorithms", "Theory", "Computing", "Security", "Learning", "Machine",
+            "Programming", "Java", "Query", "Processing", "Storage", "Engineering", "Software", "Patterns",
+            "Performance", "Analysis", "Models", "Concurrency", "Transactions", "Indexing", "Cloud", "Scalable",
+            "Mindset", "Debugging", "Bitcoin", "Pedigree", "Foundations", "Handbook", "Guide"};
+
+    private final long seed;
+    private final int authors;
+    private final int publishers;
+    private final int minAuthorsPerTitle;
+    private final int maxAuthorsPerTitle;
+    private final int minYear;
+    private final int maxYear;
+    private final int minPriceCents;
+    private final int maxPriceCents;
+    private final double duplicateRate;
+    // cumulative Zipf probabilities of the publishers, by rank
+    private final double[] publisherCdf;
+
+    CatalogGenerator(long seed, int authors, int publishers, double zipf, int[] authorsPerTitle,
+                     int[] years, int[] prices, double duplicateRate){
+        this.seed = seed;
+        this.authors = authors;
+        this.publishers = publishers;
+        this.minAuthorsPerTitle = authorsPerTitle[0];
+        this.maxAuthorsPerTitle = authorsPerTitle[1];
+        this.minYear = years[0];
+        this.maxYear = years[1];
+        this.minPriceCents = prices[0] * 100;
+        this.maxPriceCents = prices[1] * 100;
+        this.duplicateRate = duplicateRate;
+        this.publisherCdf = new double[publishers];
+        double total = 0;
+        for (int rank = 0; rank < publishers; rank++){
+            total += 1.0 / Math.pow(rank + 1, zipf);
+            publisherCdf[rank] = total;
+        }
+        for (int rank = 0; rank < publishers; rank++){
+            publisherCdf[rank] /= total;
+        }
+    }
+
+    static void main(String[] args) throws Exception {
+        if (args.length < 2){
+            System.out.println("usage: generate <output file> [--name=value ...]");
+            return;
+        }
+        long rows = Long.parseLong(option(args, "rows", "1000000"));
+        int[] authorsPerTitle = range(option(args, "authorsPerTitle", "1-3"));
+        CatalogGenerator generator = new CatalogGenerator(
+                Long.parseLong(option(args, "seed", "1")),
+                Integer.parseInt(option(args, "authors", String.valueOf(Math.max(10, rows / 3)))),
+                Integer.parseInt(option(args, "publishers", String.valueOf(Math.max(PUBLISHERS.length, rows / 1000)))),
+                Double.parseDouble(option(args, "zipf", "1.0")),
+                authorsPerTitle,
+                range(option(args, "years", "1950-2020")),
+                range(option(args, "prices", "5-150")),
+                Double.parseDouble(option(args, "duplicateRate", "0.01")));
+        int threads = Integer.parseInt(option(args, "threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long t0 = System.nanoTime();
+        long bytes = generator.write(Paths.get(args[1]), rows, threads);
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        System.out.format("%d rows (%.1f MB) written to %s in %.2f s (%.0f rows/sec).%n",
+                rows, bytes / 1e6, args[1], seconds, rows / seconds);
+    }
+
+    private static String option(String[] args, String name, String defaultValue){
+        String prefix = "--" + name + "=";
+        for (int i = 2; i < args.length; i++){
+            if (args[i].startsWith(prefix)){
+                return args[i].substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    // "a-b" or "a"
+    private static int[] range(String value){
+        int dash = value.indexOf('-', 1);
+        if (dash < 0){
+            int v = Integer.parseInt(value);
+            return new int[]{v, v};
+        }
+        return new int[]{Integer.parseInt(value.substring(0, dash)), Integer.parseInt(value.substring(dash + 1))};
+    }
+
+    /**
+     * generate chunks on threads and write them in order until rows lines are written
+     * @return bytes written
+     */
+    long write(Path file, long rows, int threads) throws IOException, InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+            long nextChunk = 0;
+            long written = 0;
+            long bytes = 0;
+            while (written < rows){
+                while (inFlight.size() < 2 * threads){
+                    long chunk = nextChunk++;
+                    inFlight.add(executor.submit(() -> chunk(chunk)));
+                }
+                byte[] data = inFlight.poll().get();
+                int length = data.length;
+                int lines = countLines(data, length);
+                if (written + lines > rows){
+                    length = endOfLine(data, rows - written);
+                    lines = (int) (rows - written);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                while (buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+                written += lines;
+                bytes += length;
+            }
+            for (Future<byte[]> pending : inFlight){
+                pending.cancel(true);
+            }
+            return bytes;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int countLines(byte[] data, int length){
+        int lines = 0;
+        for (int i = 0; i < length; i++){
+            if (data[i] == '\n'){
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    // offset just past the given number of lines
+    private static int endOfLine(byte[] data, long lines){
+        int i = 0;
+        for (long seen = 0; seen < lines; i++){
+            if (data[i] == '\n'){
+                seen++;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * the lines of titles [chunk * CHUNK_TITLES, (chunk + 1) * CHUNK_TITLES)
+     */
+    byte[] chunk(long chunk){
+        SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + chunk);
+        StringBuilder out = new StringBuilder(CHUNK_TITLES * (maxAuthorsPerTitle + 1) * 96);
+        int[] lineStarts = new int[CHUNK_TITLES * maxAuthorsPerTitle * 2];
+        int lines = 0;
+        StringBuilder title = new StringBuilder();
+        for (long t = chunk * CHUNK_TITLES; t < (chunk + 1) * CHUNK_TITLES; t++){
+            int publisherID = publisher(random.nextDouble()) + 1;
+            int editionNumber = 1 + (random.nextInt(10) < 7 ? 0 : random.nextInt(5));
+            int year = minYear + random.nextInt(maxYear - minYear + 1);
+            int cents = minPriceCents + random.nextInt(maxPriceCents - minPriceCents + 1);
+            title(random, title);
+            // a bijection of the title number onto ten digits, so isbns are unique and not sorted
+            String digits = Long.toString((t % 10_000_000_000L * 700_000_001L + 1_234_567L) % 10_000_000_000L);
+            String isbn = "0000000000".substring(digits.length()) + digits;
+            int count = minAuthorsPerTitle + random.nextInt(maxAuthorsPerTitle - minAuthorsPerTitle + 1);
+            for (int a = 0; a < count; a++){
+                int authorID = 1 + random.nextInt(authors);
+                lineStarts[lines++] = out.length();
+                out.append(authorID).append('\t')
+                        .append(FIRST_NAMES[Math.floorMod(authorID * 31, FIRST_NAMES.length)]).append('\t')
+                        .append(LAST_NAMES[Math.floorMod(authorID / FIRST_NAMES.length * 17 + authorID, LAST_NAMES.length)]).append('\t')
+                        .append(publisherID).append('\t')
+                        .append(publisherName(publisherID)).append('\t')
+                        .append(editionNumber).append('\t')
+                        .append(year).append('\t')
+                        .append(cents / 100).append('.').append(cents % 100 / 10).append(cents % 10).append('\t')
+                        .append(title).append('\t')
+                        .append(isbn).append('\n');
+                if (random.nextDouble() < duplicateRate){
+                    int start = lineStarts[random.nextInt(lines)];
+                    int end = out.indexOf("\n", start) + 1;
+                    lineStarts[lines++] = out.length();
+                    out.append(out, start, end);
+                }
+            }
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // publisher rank for a uniform value in [0, 1)
+    private int publisher(double u){
+        int rank = Arrays.binarySearch(publisherCdf, u);
+        return Math.min(rank >= 0 ? rank : -rank - 1, publishers - 1);
+    }
+
+    private static String publisherName(int publisherID){
+        return publisherID <= PUBLISHERS.length ? PUBLISHERS[publisherID - 1] : "Publisher " + publisherID;
+    }
+
+    private static void title(SplittableRandom random, StringBuilder title){
+        title.setLength(0);
+        if (random.nextInt(1000) == 0){
+            title.append("Harry Potter and the ");
+        }
+        int words = 2 + random.nextInt(5);
+        for (int w = 0; w < words; w++){
+            if (w > 0){
+                title.append(' ');
+            }
+            title.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+}
+
+/**
+ * Latency histogram of one operation, HDR-style: values below 32 ns have their own bucket and
+ * larger values keep their top five significant bits, so every bucket is within 1/16 of the
+ * values it holds. record() only increments atomics, so it is lock-free and allocation-free.
+ * Each histogram is also a JMX MBean (Book:type=Operation,name=...) with its counts and percentiles
+ * in microseconds.
+ */
+class LatencyHistogram implements DynamicMBean {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+    private static final String[] ATTRIBUTES = {"Count", "Errors", "MeanMicros", "P50Micros", "P99Micros", "P999Micros", "MaxMicros"};
+
+    final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    LatencyHistogram(String name){
+        this.name = name;
+    }
+
+    static int bucket(long nanos){
+        if (nanos < 2 * SUB_COUNT){
+            return (int) Math.max(nanos, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        return shift * SUB_COUNT + (int) (nanos >>> shift);
+    }
+
+    // largest value that falls in the bucket
+    static long upperBound(int bucket){
+        if (bucket < 2 * SUB_COUNT){
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long mantissa = bucket % SUB_COUNT + SUB_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    void record(long nanos){
+        buckets.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)){
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * record the time since t0 (a System.nanoTime value)
+     */
+    void recordSince(long t0){
+        record(System.nanoTime() - t0);
+    }
+
+    void error(){
+        errors.incrementAndGet();
+    }
+
+    long count(){
+        return count.get();
+    }
+
+    long errors(){
+        return errors.get();
+    }
+
+    double meanNanos(){
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalNanos.get() / n;
+    }
+
+    long maxNanos(){
+        return maxNanos.get();
+    }
+
+    /**
+     * @param fraction 0.5 for the median, 0.99, 0.999, ...
+     * @return upper bound of the bucket holding that fraction of the recorded values, capped at the maximum
+     */
+    long percentileNanos(double fraction){
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            total += buckets.get(i);
+        }
+        if (total == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            seen += buckets.get(i);
+            if (seen >= rank){
+                return Math.min(upperBound(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        switch (attribute){
+            case "Count":
+                return count();
+            case "Errors":
+                return errors();
+            case "MeanMicros":
+                return meanNanos() / 1e3;
+            case "P50Micros":
+                return percentileNanos(0.5) / 1e3;
+            case "P99Micros":
+                return percentileNanos(0.99) / 1e3;
+            case "P999Micros":
+                return percentileNanos(0.999) / 1e3;
+            case "MaxMicros":
+                return maxNanos() / 1e3;
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes){
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes){
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e){
+                // left out, as the DynamicMBean contract asks
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes){
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(){
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[ATTRIBUTES.length];
+        for (int i = 0; i < ATTRIBUTES.length; i++){
+            String type = i < 2 ? "long" : "double";
+            attributes[i] = new MBeanAttributeInfo(ATTRIBUTES[i], type, ATTRIBUTES[i] + " of " + name, true, false, false);
+        }
+        return new MBeanInfo(LatencyHistogram.class.getName(), "latency of " + name, attributes, null, null, null);
+    }
+}
+
+/**
+ * The latency histograms of Book's JDBC calls: one per table for the loaders (a single insert in
+ * row mode, one executeBatch in the batch modes), the load commits, and every report query and
+ * mutation. They are registered with the platform MBean server, printed by dump() at the end of a
+ * run and, with --metricsInterval=N, every N seconds.
+ */
+class OperationMetrics {
+    private static final List<LatencyHistogram> ALL = new ArrayList<>();
+
+    static final LatencyHistogram[] LOAD = new LatencyHistogram[LoadStats.TABLE_NAMES.length];
+    static {
+        for (int table = 0; table < LOAD.length; table++){
+            LOAD[table] = register("load." + LoadStats.TABLE_NAMES[table]);
+        }
+    }
+    static final LatencyHistogram LOAD_COMMIT = register("load.commit");
+    static final LatencyHistogram ORDER_AUTHOR_NAME = register("orderAuthorName");
+    static final LatencyHistogram GET_ALL_PUBLISHER = register("getAllPublisher");
+    static final LatencyHistogram BOOKS_BY_PUBLISHER = register("booksByPublisher");
+    static final LatencyHistogram PRINT_TITLES = register("printTitles");
+    static final LatencyHistogram INSERT_AUTHOR = register("insertAuthor");
+    static final LatencyHistogram INSERT_AUTHOR_OK = register("insertAuthorOK");
+    static final LatencyHistogram EDIT_AUTHOR = register("editAuthor");
+    static final LatencyHistogram EDIT_AUTHOR_OK = register("editAuthorOK");
+    static final LatencyHistogram ADD_TITLE = register("addTitle");
+    static final LatencyHistogram ADD_PUBLISHER = register("addPublisher");
+    static final LatencyHistogram ADD_PUBLISHER_OK = register("addPublisherOK");
+    static final LatencyHistogram EDIT_PUBLISHERS = register("editPublishers");
+    static final LatencyHistogram EDIT_PUBLISHER_OK = register("editPublisherOK");
+
+    private static ScheduledExecutorService dumper;
+
+    private static LatencyHistogram register(String name){
+        LatencyHistogram histogram = new LatencyHistogram(name);
+        ALL.add(histogram);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(histogram,
+                    new ObjectName("Book:type=Operation,name=" + name));
+        } catch (JMException e){
+            System.err.println("Metrics for " + name + " are not available over JMX: " + e.getMessage());
+        }
+        return histogram;
+    }
+
+    /**
+     * print the metrics every intervalSeconds until stopDumps
+     */
+    static synchronized void startDumps(long intervalSeconds){
+        if (intervalSeconds <= 0 || dumper != null){
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(OperationMetrics::dump, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    static synchronized void stopDumps(){
+        if (dumper != null){
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    /**
+     * print count, errors and latency percentiles of every operation that ran
+     */
+    static void dump(){
+        StringBuilder out = new StringBuilder();
+        Formatter format = new Formatter(out);
+        String line = "+--------------------+------------+--------+------------+------------+------------+------------+------------+%n";
+        format.format("%n");
+        format.format(line);
+        format.format("| operation          | count      | errors | mean us    | p50 us     | p99 us     | p999 us    | max us     |%n");
+        format.format(line);
+        for (LatencyHistogram h : ALL){
+            if (h.count() == 0 && h.errors() == 0){
+                continue;
+            }
+            format.format("| %-18s | %10d | %6d | %10.1f | %10.1f | %10.1f | %10.1f | %10.1f |%n", h.name, h.count(), h.errors(),
+                    h.meanNanos() / 1e3, h.percentileNanos(0.5) / 1e3, h.percentileNanos(0.99) / 1e3,
+                    h.percentileNanos(0.999) / 1e3, h.maxNanos() / 1e3);
+        }
+        format.format(line);
+        System.out.print(out);
+    }
+}
+
+/**
+ * Tracing wrapper for the connections handed out by Book.getConnection (--trace=true) and the
+ * statements of the StatementCache. Every execution records its SQL with literals replaced by ?,
+ * the execute time, the time to the first row, the rows fetched and the time spent in
+ * ResultSet.next (the network time of cursor and streaming fetches). Executions slower than
+ * --slowQueryMillis=100 are written to the slow-query log (--slowQueryLog=file, else System.err),
+ * and topByTotalTime(n) reports the statements with the most total time, also over JMX as the
+ * Book:type=QueryTracer operation. A prepared statement resolves its aggregate once when it is
+ * wrapped, so a traced execution costs two proxy calls and a few atomic adds.
+ */
+class QueryTracer {
+    static volatile boolean enabled;
+    private static volatile long slowNanos = 100_000_000L;
+    private static PrintStream slowLog = System.err;
+    private static final ConcurrentHashMap<String, QueryStats> STATS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> REDACTED = new ConcurrentHashMap<>();
+    private static final int MAX_REDACTED = 10_000;
+
+    // implemented by the traced statement proxies, so a statement is never wrapped twice
+    interface Traced {
+    }
+
+    private static class QueryStats {
+        final String sql;
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong fetchNanos = new AtomicLong();
+        final AtomicLong slow = new AtomicLong();
+
+        QueryStats(String sql){
+            this.sql = sql;
+        }
+    }
+
+    // one execution, finished when its ResultSet closes (or at once for updates)
+    private static class Trace {
+        final QueryStats stats;
+        final long start;
+        long executeNanos;
+        long firstRowNanos = -1;
+        long fetchNanos;
+        long maxFetchNanos;
+        long rows;
+        boolean finished;
+
+        Trace(QueryStats stats, long start){
+            this.stats = stats;
+            this.start = start;
+        }
+    }
+
+    /**
+     * @param logFile slow-query log, or null for System.err
+     */
+    static synchronized void configure(boolean enabled, long slowMillis, String logFile) throws IOException {
+        QueryTracer.slowNanos = slowMillis * 1_000_000L;
+        if (logFile != null){
+            slowLog = new PrintStream(new FileOutputStream(logFile, true), true, "UTF-8");
+        }
+        if (enabled && !QueryTracer.enabled){
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new TracerMBean(),
+                        new ObjectName("Book:type=QueryTracer"));
+            } catch (JMException e){
+                System.err.println("The query trace is not available over JMX: " + e.getMessage());
+            }
+        }
+        QueryTracer.enabled = enabled;
+    }
+
+    static Connection wrap(Connection conn){
+        Connection[] traced = new Connection[1];
+        traced[0] = proxy(Connection.class, (proxy, method, args) -> {
+            Object result = call(conn, method, args);
+            switch (method.getName()){
+                case "prepareStatement":
+                case "prepareCall":
+                    return wrap((PreparedStatement) result, (String) args[0], traced[0]);
+                case "createStatement":
+                    return wrap((Statement) result, traced[0]);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return result;
+            }
+        });
+        return traced[0];
+    }
+
+    static PreparedStatement wrap(PreparedStatement stmt, String sql){
+        return stmt instanceof Traced ? stmt : wrap(stmt, sql, null);
+    }
+
+    private static PreparedStatement wrap(PreparedStatement stmt, String sql, Connection conn){
+        QueryStats stats = stats(sql);
+        Trace[] open = new Trace[1];
+        return traced(PreparedStatement.class, (proxy, method, args) ->
+                invoke(stmt, conn, proxy, method, args, stats, open));
+    }
+
+    private static Statement wrap(Statement stmt, Connection conn){
+        Trace[] open = new Trace[1];
+        return traced(Statement.class, (proxy, method, args) ->
+                invoke(stmt, conn, proxy, method, args, null, open));
+    }
+
+    /**
+     * @param prepared aggregate of a prepared statement; null for a Statement, whose SQL is an argument
+     * @param open the execution whose ResultSet is still open
+     */
+    private static Object invoke(Statement stmt, Connection conn, Object proxy, Method method, Object[] args,
+                                 QueryStats prepared, Trace[] open) throws Throwable {
+        String name = method.getName();
+        if (!name.startsWith("execute")){
+            if (name.equals("getConnection") && conn != null){
+                return conn;
+            }
+            if (name.equals("close")){
+                finish(open[0]);
+            }
+            if (name.equals("equals")){
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")){
+                return System.identityHashCode(proxy);
+            }
+            Object result = call(stmt, method, args);
+            if (name.equals("getResultSet") && result != null && open[0] != null){
+                return wrap((ResultSet) result, open[0]);
+            }
+            return result;
+        }
+        finish(open[0]);
+        QueryStats stats = prepared != null ? prepared
+                : stats(args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : "?");
+        Trace trace = new Trace(stats, System.nanoTime());
+        try {
+            Object result = call(stmt, method, args);
+            trace.executeNanos = System.nanoTime() - trace.start;
+            if (result instanceof ResultSet){
+                open[0] = trace;
+                return wrap((ResultSet) result, trace);
+            }
+            if (result instanceof Boolean && (Boolean) result){
+                // execute() with a result set: finished by getResultSet().close() or the next execute
+                open[0] = trace;
+                return result;
+            }
+            if (result instanceof Integer){
+                trace.rows = (Integer) result;
+            } else if (result instanceof int[]){
+                trace.rows = ((int[]) result).length;
+            }
+            finish(trace);
+            return result;
+        } finally {
+            if (trace.executeNanos == 0){
+                // the execute threw
+                trace.executeNanos = System.nanoTime() - trace.start;
+                finish(trace);
+            }
+        }
+    }
+
+    private static ResultSet wrap(ResultSet rs, Trace trace){
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "next": {
+                    long t0 = System.nanoTime();
+                    Object more = call(rs, method, args);
+                    long t1 = System.nanoTime();
+                    long elapsed = t1 - t0;
+                    trace.fetchNanos += elapsed;
+                    trace.maxFetchNanos = Math.max(trace.maxFetchNanos, elapsed);
+                    if (trace.firstRowNanos < 0){
+                        trace.firstRowNanos = t1 - trace.start;
+                    }
+                    if ((Boolean) more){
+                        trace.rows++;
+                    } else {
+                        finish(trace);
+                    }
+                    return more;
+                }
+                case "close":
+                    finish(trace);
+                    return call(rs, method, args);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return call(rs, method, args);
+            }
+        });
+    }
+
+    private static void finish(Trace trace){
+        if (trace == null || trace.finished){
+            return;
+        }
+        trace.finished = true;
+        long total = trace.executeNanos + trace.fetchNanos;
+        QueryStats stats = trace.stats;
+        stats.calls.incrementAndGet();
+        stats.totalNanos.addAndGet(total);
+        stats.rows.addAndGet(trace.rows);
+        stats.fetchNanos.addAndGet(trace.fetchNanos);
+        long max = stats.maxNanos.get();
+        while (total > max && !stats.maxNanos.compareAndSet(max, total)){
+            max = stats.maxNanos.get();
+        }
+        if (total >= slowNanos){
+            stats.slow.incrementAndGet();
+            slowLog.format("%s slow query %.3f ms (execute %.3f ms, first row %.3f ms, %d rows, fetch %.3f ms, max fetch %.3f ms): %s%n",
+                    Instant.now(), total / 1e6, trace.executeNanos / 1e6,
+                    trace.firstRowNanos < 0 ? 0 : trace.firstRowNanos / 1e6, trace.rows,
+                    trace.fetchNanos / 1e6, trace.maxFetchNanos / 1e6, stats.sql);
+        }
+    }
+
+    private static QueryStats stats(String sql){
+        String redacted = REDACTED.get(sql);
+        if (redacted == null){
+            redacted = redact(sql);
+            if (REDACTED.size() < MAX_REDACTED){
+                REDACTED.put(sql, redacted);
+            }
+        }
+        return STATS.computeIfAbsent(redacted, QueryStats::new);
+    }
+
+    /**
+     * replace string and numeric literals with ?, and collapse whitespace
+     */
+    static String redact(String sql){
+        StringBuilder out = new StringBuilder(sql.length());
+        int i = 0;
+        while (i < sql.length()){
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"'){
+                i++;
+                while (i < sql.length()){
+                    if (sql.charAt(i) == c){
+                        if (i + 1 < sql.length() && sql.charAt(i + 1) == c){
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    if (sql.charAt(i) == '\\'){
+                        i++;
+                    }
+                    i++;
+                }
+                i++;
+                out.append('?');
+            } else if (Character.isDigit(c) && (out.length() == 0 || !isIdentifier(out.charAt(out.length() - 1)))){
+                while (i < sql.length() && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')){
+                    i++;
+                }
+                out.append('?');
+            } else if (Character.isWhitespace(c)){
+                if (out.length() > 0 && out.charAt(out.length() - 1) != ' '){
+                    out.append(' ');
+                }
+                i++;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        return out.toString().trim();
+    }
+
+    private static boolean isIdentifier(char c){
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * the n statements with the most total time: calls, total, mean, max, rows, fetch time and slow executions
+     */
+    static String topByTotalTime(int n){
+        List<QueryStats> all = new ArrayList<>(STATS.values());
+        all.sort((a, b) -> Long.compare(b.totalNanos.get(), a.totalNanos.get()));
+        StringBuilder out = new StringBuilder();
+        Formatter format = new Formatter(out);
+        String line = "+----+----------+------------+------------+------------+------------+------------+--------+%n";
+        format.format("%n");
+        format.format(line);
+        format.format("| #  | calls    | total ms   | mean ms    | max ms     | rows       | fetch ms   | slow   | statement%n");
+        format.format(line);
+        for (int i = 0; i < Math.min(n, all.size()); i++){
+            QueryStats s = all.get(i);
+            long calls = s.calls.get();
+            format.format("| %-2d | %8d | %10.3f | %10.3f | %10.3f | %10d | %10.3f | %6d | %s%n", i + 1, calls,
+                    s.totalNanos.get() / 1e6, calls == 0 ? 0 : s.totalNanos.get() / 1e6 / calls,
+                    s.maxNanos.get() / 1e6, s.rows.get(), s.fetchNanos.get() / 1e6, s.slow.get(), s.sql);
+        }
+        format.format(line);
+        return out.toString();
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e){
+            throw e.getCause();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler){
+        return (T) Proxy.newProxyInstance(QueryTracer.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T traced(Class<T> type, InvocationHandler handler){
+        return (T) Proxy.newProxyInstance(QueryTracer.class.getClassLoader(), new Class<?>[]{type, Traced.class}, handler);
+    }
+
+    // JMX access to topByTotalTime
+    private static class TracerMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes){
+            return new AttributeList();
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes){
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if (actionName.equals("topByTotalTime") && params != null && params.length == 1){
+                return topByTotalTime((Integer) params[0]);
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
 
-        } catch(Exception e){
-            System.out.println(e);
-        } finally{
+        @Override
+        public MBeanInfo getMBeanInfo(){
+            MBeanOperationInfo top = new MBeanOperationInfo("topByTotalTime", "statements with the most total time",
+                    new MBeanParameterInfo[]{new MBeanParameterInfo("n", "int", "number of statements")},
+                    "java.lang.String", MBeanOperationInfo.INFO);
+            return new MBeanInfo(QueryTracer.class.getName(), "JDBC statement trace", null, null,
+                    new MBeanOperationInfo[]{top}, null);
         }
     }
+}
+
+/**
+ * Buffers rows per table and writes them as multi-row INSERT ... VALUES (?,..),(?,..) statements.
+ * A pending run of n rows is split into power-of-two buckets (512 + 256 + 8 + ...), and one
+ * prepared statement is cached per table and bucket. The rows buffered for a table are kept
+ * under max_allowed_packet by a conservative size estimate, so no statement is larger than the
+ * server accepts. A statement rejected for a duplicate key is retried one row at a time, and a
+ * failed row counts as already present, as in the other loaders.
+ */
+class MultiRowInsert implements AutoCloseable {
+    static final String[] INSERT_PREFIX = {
+            "INSERT INTO Authors(authorID, firstName, lastName) VALUES ",
+            "INSERT INTO Publishers(publisherID, publisherName) VALUES ",
+            "INSERT INTO Titles(editionNumber, years, publisherID, price, title, isbn) VALUES ",
+            "INSERT INTO AuthorISBN(authorID, isbn) VALUES "};
+    static final int[] COLUMNS = {3, 2, 6, 2};
+    static final long DEFAULT_PACKET = 4L * 1024 * 1024;
+    // most placeholders a server-side prepared statement may have
+    static final int MAX_PLACEHOLDERS = 65535;
+
+    private final Connection conn;
+    private final LoadStats stats;
+    private final int[] maxBucket = new int[INSERT_PREFIX.length];
+    private final long maxBytes;
+    private final PreparedStatement[][] statements;
+    private final List<List<Object[]>> pending = new ArrayList<>();
+    private final long[] pendingBytes = new long[INSERT_PREFIX.length];
 
     /**
-     * check if changing John Miller into Mary Johnson is successful.
-     * @param stmt
-     * @throws Exception
+     * @param rowsPerStatement largest number of rows in one statement, rounded down to a power of two
+     *                         and to at most MAX_PLACEHOLDERS parameters
      */
-    public static void editAuthorOK(Statement stmt) throws Exception{
-        ResultSet rs;
-        try{
-            rs = stmt.executeQuery("" +
-                    "SELECT * " +
-                    "FROM Authors " +
-                    "WHERE authorID = 37 ;");
-            System.out.println();
+    MultiRowInsert(Connection conn, int rowsPerStatement, LoadStats stats) throws SQLException {
+        this.conn = conn;
+        this.stats = stats;
+        int bucket = 31 - Integer.numberOfLeadingZeros(Math.max(1, rowsPerStatement));
+        this.statements = new PreparedStatement[INSERT_PREFIX.length][];
+        for (int table = 0; table < INSERT_PREFIX.length; table++){
+            maxBucket[table] = Math.min(bucket, 31 - Integer.numberOfLeadingZeros(MAX_PLACEHOLDERS / COLUMNS[table]));
+            statements[table] = new PreparedStatement[maxBucket[table] + 1];
+            pending.add(new ArrayList<>());
+        }
+        // leave room for the statement text and the protocol header
+        this.maxBytes = maxAllowedPacket(conn) * 9 / 10 - 1024;
+    }
+
+    static long maxAllowedPacket(Connection conn){
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT @@max_allowed_packet")){
+            return rs.next() ? rs.getLong(1) : DEFAULT_PACKET;
+        } catch (SQLException e){
+            return DEFAULT_PACKET;
+        }
+    }
+
+    /**
+     * the SQL text for rows rows of a table, as an upsert with --upsert=true
+     */
+    static String sql(int table, int rows){
+        StringBuilder group = new StringBuilder("(");
+        for (int c = 0; c < COLUMNS[table]; c++){
+            group.append(c == 0 ? "?" : ",?");
+        }
+        group.append(')');
+        StringBuilder sql = new StringBuilder(INSERT_PREFIX[table]);
+        for (int r = 0; r < rows; r++){
+            if (r > 0){
+                sql.append(',');
+            }
+            sql.append(group);
+        }
+        return Book.upsert ? Book.upsertSql(sql.toString(), table) : sql.toString();
+    }
+
+    // upper bound of the bytes one row adds to the statement as the client sends it
+    private static long estimate(Object[] values){
+        long bytes = 3;
+        for (Object value : values){
+            // UTF-8 and escaping can at worst triple a string; numbers are at most 24 characters
+            bytes += value instanceof String ? 3L * ((String) value).length() + 3 : 24;
+        }
+        return bytes;
+    }
+
+    /**
+     * buffer one row; when the table's buffer would outgrow the packet every table is flushed first
+     */
+    void add(int table, Object... values) throws SQLException {
+        long bytes = estimate(values);
+        if (pendingBytes[table] + bytes > maxBytes){
+            flush();
+        }
+        pending.get(table).add(values);
+        pendingBytes[table] += bytes;
+    }
+
+    /**
+     * write the buffered rows of every table in foreign key order and commit
+     */
+    void flush() throws SQLException {
+        for (int table = 0; table < INSERT_PREFIX.length; table++){
+            List<Object[]> rows = pending.get(table);
+            int from = 0;
+            while (from < rows.size()){
+                int bucket = Math.min(maxBucket[table], 31 - Integer.numberOfLeadingZeros(rows.size() - from));
+                int count = 1 << bucket;
+                long t0 = System.nanoTime();
+                int inserted;
+                try {
+                    inserted = Book.countWritten(execute(table, bucket, rows, from), count);
+                } catch (SQLIntegrityConstraintViolationException e){
+                    inserted = 0;
+                    for (int r = from; r < from + count; r++){
+                        try {
+                            inserted += Book.countWritten(execute(table, 0, rows, r), 1);
+                        } catch (SQLIntegrityConstraintViolationException duplicate){
+                            // tuple already exists
+                        }
+                    }
+                }
+                stats.record(table, inserted, System.nanoTime() - t0);
+                from += count;
+            }
+            rows.clear();
+            pendingBytes[table] = 0;
+        }
+        long t0 = System.nanoTime();
+        conn.commit();
+        stats.commit(System.nanoTime() - t0);
+    }
+
+    private int execute(int table, int bucket, List<Object[]> rows, int from) throws SQLException {
+        PreparedStatement ps = statements[table][bucket];
+        if (ps == null){
+            ps = conn.prepareStatement(sql(table, 1 << bucket));
+            statements[table][bucket] = ps;
+        }
+        int index = 1;
+        for (int r = from; r < from + (1 << bucket); r++){
+            for (Object value : rows.get(r)){
+                ps.setObject(index++, value);
+            }
+        }
+        return ps.executeUpdate();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (PreparedStatement[] byBucket : statements){
+            for (PreparedStatement ps : byBucket){
+                if (ps != null){
+                    ps.close();
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Spreads the catalog over several MySQL instances (--shards=url1,url2,...).
+ * Titles and AuthorISBN rows live on the shard chosen by a hash of their isbn, so a title and
+ * its author links are always together; Authors and Publishers are small and copied to every
+ * shard, which keeps every foreign key local. Queries run on all shards at once: ordered
+ * listings are merged by title as the shards' rows arrive, and the per-publisher aggregates are
+ * combined from per-shard counts and sums (never by averaging averages).
+ */
+class ShardedCatalog implements AutoCloseable {
+    static final String COUNT_BY_PUBLISHER_SQL = "" +
+            "SELECT publisherID, count(isbn) " +
+            "FROM Titles " +
+            "GROUP BY publisherID";
+    static final String PRICE_BY_PUBLISHER_SQL = "" +
+            "SELECT Titles.publisherID, Publishers.publisherName, count(*), sum(Titles.price) " +
+            "FROM Titles, Publishers " +
+            "WHERE Titles.publisherID = Publishers.publisherID " +
+            "GROUP BY Titles.publisherID, Publishers.publisherName";
+    // the two listings with the collation sort key of the title, which the merge compares: it orders
+    // the rows exactly as ORDER BY title does on one server, case- and accent-insensitive by default
+    static final String BOOKS_BY_PUBLISHER_SQL = "" +
+            "SELECT Titles.title, Titles.years, Titles.isbn, WEIGHT_STRING(Titles.title) " +
+            "FROM Titles, Publishers " +
+            "WHERE Titles.publisherID = Publishers.publisherID AND Publishers.publisherName = ? " +
+            "ORDER BY Titles.title ASC";
+    static final String PRINT_TITLES_SQL = "" +
+            "SELECT title, years, isbn, WEIGHT_STRING(title) " +
+            "FROM Titles " +
+            "ORDER BY title ASC";
+
+    interface ShardTask<T> {
+        T run(Connection conn) throws Exception;
+    }
+
+    // the current row of one shard's ordered result and its sort key (the last column)
+    private static class Cursor {
+        final ResultSet rs;
+        final int keyColumn;
+        byte[] key;
+
+        Cursor(ResultSet rs) throws SQLException {
+            this.rs = rs;
+            this.keyColumn = rs.getMetaData().getColumnCount();
+        }
+
+        boolean advance() throws SQLException {
             if (rs.next()){
-                System.out.println("========== Query 5: Edit author name: Change John Miller into Mary Johnson. \n" +
-                        "Result after edits: [Author ID: +" + rs.getInt(1) +
-                        ", first name is Mary: " + rs.getString(2).equals("Mary") +
-                        ", last name is Johnson: " + rs.getString(3).equals("Johnson") +
-                        "] ========= \n");
+                key = rs.getBytes(keyColumn);
+                return true;
             }
-            orderAuthorName(stmt);
+            return false;
+        }
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private final Connection[] shards;
+    private final ExecutorService executor;
+
+    ShardedCatalog(List<String> urls, String username, String password) throws Exception {
+        shards = new Connection[urls.size()];
+        for (int i = 0; i < shards.length; i++){
+            shards[i] = Book.getConnection(urls.get(i).trim(), username, password);
         }
+        executor = Executors.newFixedThreadPool(shards.length, r -> {
+            Thread t = new Thread(r, "shard");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    int size(){
+        return shards.length;
     }
 
     /**
-     * add an title to the Titles table
-     * @param conn
+     * the shard of a Titles or AuthorISBN row: FNV-1a of the isbn, modulo the shard count
      */
-    public static void addTitle(Connection conn){
-        try{
-            PreparedStatement insertRow_Titles = conn.prepareStatement(
-                    "INSERT INTO Titles(editionNumber, years, publisherID, price, title, isbn) values(?,?,?,?,?,?)"
-            );
+    static int shardOf(String isbn, int shards){
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < isbn.length(); i++){
+            hash ^= isbn.charAt(i);
+            hash *= 0x01000193;
+        }
+        return Math.floorMod(hash, shards);
+    }
 
-            insertRow_Titles.setInt(1, 1);
-            insertRow_Titles.setString(2, "1993");
-            insertRow_Titles.setInt(3, 5);
-            insertRow_Titles.setFloat(4, 55);
-            insertRow_Titles.setString(5, "Marching Band");
-            insertRow_Titles.setString(6, "12345678");
-            insertRow_Titles.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * run task on every shard at the same time. When a shard fails, the results the other
+     * shards returned (open ResultSets) are closed before the failure is thrown.
+     * @return the results in shard order
+     */
+    <T> List<T> scatter(ShardTask<T> task) throws Exception {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Connection conn : shards){
+            futures.add(executor.submit(() -> task.run(conn)));
+        }
+        List<T> results = new ArrayList<>();
+        Exception failure = null;
+        for (Future<T> future : futures){
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e){
+                if (failure == null){
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null){
+            for (T result : results){
+                if (result instanceof AutoCloseable){
+                    try {
+                        ((AutoCloseable) result).close();
+                    } catch (Exception e){
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            throw failure;
         }
+        return results;
     }
 
-    public static void printTitles(Statement stmt) throws Exception{
-        ResultSet rs;
-        try{
-            rs = stmt.executeQuery("" +
-                    "SELECT title, years, isbn " +
-                    "FROM Titles " +
-                    "ORDER BY title ASC");
-            System.out.println();
-            System.out.println("========== Query 6: Print Titles table (3 columns only: title, year, isbn)." +
-                    "Order by last name and first name in ascending order =========");
+    void createTables(String[] dbTables) throws Exception {
+        scatter(conn -> {
+            Book.dropTable(conn, dbTables);
+            Book.createTable(conn);
+            return null;
+        });
+    }
+
+    /**
+     * load the data file: Authors and Publishers rows are batched for every shard, Titles and
+     * AuthorISBN rows for the shard of their isbn. Every batchSize lines the shards flush and
+     * commit in parallel; each shard commits on its own.
+     */
+    void load(String fileName, int batchSize, LoadStats stats) throws Exception {
+        PreparedStatement[][] batches = new PreparedStatement[shards.length][LoadStats.TABLE_NAMES.length];
+        for (int s = 0; s < shards.length; s++){
+            shards[s].setAutoCommit(false);
+            for (int table = 0; table < LoadStats.TABLE_NAMES.length; table++){
+                batches[s][table] = shards[s].prepareStatement(Book.insertSql(table));
+            }
+        }
+        DedupRegistry registry = new DedupRegistry();
+        try (BookDataParser parser = new BookDataParser(fileName)){
+            stats.start();
+            int pending = 0;
+            while (parser.next()){
+                stats.lines++;
+                int authorID = parser.authorID();
+                int publisherID = parser.publisherID();
+                String isbn = parser.isbn();
+                PreparedStatement[] home = batches[shardOf(isbn, shards.length)];
 
-            String leftAlignFormat = "| %-60s | %-12s | %-12s|%n";
+                if (registry.addAuthor(authorID)){
+                    for (PreparedStatement[] shard : batches){
+                        shard[LoadStats.AUTHORS].setInt(1, authorID);
+                        shard[LoadStats.AUTHORS].setString(2, parser.firstName());
+                        shard[LoadStats.AUTHORS].setString(3, parser.lastName());
+                        shard[LoadStats.AUTHORS].addBatch();
+                    }
+                } else {
+                    stats.skip(LoadStats.AUTHORS);
+                }
+                if (registry.addPublisher(publisherID)){
+                    for (PreparedStatement[] shard : batches){
+                        shard[LoadStats.PUBLISHERS].setInt(1, publisherID);
+                        shard[LoadStats.PUBLISHERS].setString(2, parser.publisherName());
+                        shard[LoadStats.PUBLISHERS].addBatch();
+                    }
+                } else {
+                    stats.skip(LoadStats.PUBLISHERS);
+                }
+                if (registry.addTitle(isbn)){
+                    home[LoadStats.TITLES].setInt(1, parser.editionNumber());
+                    home[LoadStats.TITLES].setString(2, parser.years());
+                    home[LoadStats.TITLES].setInt(3, publisherID);
+                    home[LoadStats.TITLES].setFloat(4, parser.price());
+                    home[LoadStats.TITLES].setString(5, parser.title());
+                    home[LoadStats.TITLES].setString(6, isbn);
+                    home[LoadStats.TITLES].addBatch();
+                } else {
+                    stats.skip(LoadStats.TITLES);
+                }
+                if (registry.addAuthorISBN(authorID, isbn)){
+                    home[LoadStats.AUTHOR_ISBN].setInt(1, authorID);
+                    home[LoadStats.AUTHOR_ISBN].setString(2, isbn);
+                    home[LoadStats.AUTHOR_ISBN].addBatch();
+                } else {
+                    stats.skip(LoadStats.AUTHOR_ISBN);
+                }
 
-            System.out.format("+--------------------------------------------------------------+--------------+-------------+%n");
-            System.out.format("| title                                                        | year         | isbn        |%n");
-            System.out.format("+--------------------------------------------------------------+--------------+-------------+%n");
-            while (rs.next()){
-                String title = rs.getString(1);
-                int year = rs.getInt(2);
-                int isbn = rs.getInt(3);
-                System.out.format(leftAlignFormat,title, year, isbn);
+                if (++pending == batchSize){
+                    flush(batches, stats);
+                    pending = 0;
+                }
+            }
+            if (pending > 0){
+                flush(batches, stats);
+            }
+            stats.stop();
+        } finally {
+            for (int s = 0; s < shards.length; s++){
+                for (PreparedStatement ps : batches[s]){
+                    ps.close();
+                }
+                shards[s].setAutoCommit(true);
             }
-            System.out.format("+--------------------------------------------------------------+--------------+-------------+%n");
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
+    private void flush(PreparedStatement[][] batches, LoadStats stats) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int s = 0; s < shards.length; s++){
+            Connection conn = shards[s];
+            PreparedStatement[] shard = batches[s];
+            futures.add(executor.submit(() -> {
+                Book.flushBatches(conn, shard, stats);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures){
+            future.get();
+        }
+    }
 
     /**
-     * add a publisher into Publishers table
-     * @param conn
+     * booksByPublisher on every shard, merged in the title collation order
      */
-    public static void addPublisher(Connection conn){
-        String publisherName = "Johnson";
-        try{
+    void booksByPublisher(String publisher) throws Exception {
+        List<ResultSet> results = scatter(conn -> StatementCache.of(conn).executeQuery(BOOKS_BY_PUBLISHER_SQL, publisher));
+        try (TableRenderer table = TableRenderer.open(Book.BOOKS_BY_PUBLISHER_TABLE,
+                "========== Query 3 (" + shards.length + " shards): books published by " + publisher + " =========")){
+            merge(results, rs -> table.text(rs.getString(1)).number(rs.getInt(2)).text(rs.getString(3)).endRow());
+        }
+    }
 
-            PreparedStatement post = conn.prepareStatement(
-                    "INSERT INTO Publishers(publisherName) values('" + publisherName + "')"
-            );
-            post.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * printTitles on every shard, merged in the title collation order without holding the titles in memory
+     */
+    void printTitles() throws Exception {
+        List<ResultSet> results = scatter(conn -> StatementCache.of(conn).executeQuery(PRINT_TITLES_SQL));
+        try (TableRenderer table = TableRenderer.open(Book.TITLES_TABLE,
+                "========== Query 6 (" + shards.length + " shards): Print Titles table (3 columns only: title, year, isbn) =========")){
+            merge(results, rs -> table.text(rs.getString(1)).number(rs.getInt(2)).text(rs.getString(3)).endRow());
         }
     }
 
+    interface RowConsumer {
+        void accept(ResultSet rs) throws SQLException;
+    }
+
     /**
-     * check if adding a publisher is successful.
-     * @param stmt
-     * @throws Exception
+     * k-way merge of result sets that are each ordered by their last column, a WEIGHT_STRING sort key
      */
-    public static void addPublisherOK(Statement stmt) throws Exception{
-        ResultSet rs;
-        try{
-            rs = stmt.executeQuery("" +
-                    "SELECT * " +
-                    "FROM Publishers " +
-                    "WHERE publisherID = 17 AND publisherName = 'Johnson' ;");
-            System.out.println();
-            while (rs.next()){
-                System.out.println("========== Query 7: New publisher added: [publisher ID: +" + rs.getInt(1) +
-                        ", publisher name: " + rs.getString(2) +
-                        "] =========");
+    static void merge(List<ResultSet> results, RowConsumer consumer) throws SQLException {
+        PriorityQueue<Cursor> heads = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+        try {
+            for (ResultSet rs : results){
+                Cursor cursor = new Cursor(rs);
+                if (cursor.advance()){
+                    heads.add(cursor);
+                }
+            }
+            while (!heads.isEmpty()){
+                Cursor cursor = heads.poll();
+                consumer.accept(cursor.rs);
+                if (cursor.advance()){
+                    heads.add(cursor);
+                }
             }
+        } finally {
+            for (ResultSet rs : results){
+                rs.close();
+            }
+        }
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * BooksPopulate.countISBNbyPublisher: the shards' counts added up
+     */
+    void countISBNbyPublisher() throws Exception {
+        List<Map<Integer, Long>> partials = scatter(conn -> {
+            Map<Integer, Long> counts = new HashMap<>();
+            try (ResultSet rs = StatementCache.of(conn).executeQuery(COUNT_BY_PUBLISHER_SQL)){
+                while (rs.next()){
+                    counts.put(rs.getInt(1), rs.getLong(2));
+                }
+            }
+            return counts;
+        });
+        TreeMap<Integer, Long> total = new TreeMap<>();
+        for (Map<Integer, Long> partial : partials){
+            partial.forEach((publisherID, count) -> total.merge(publisherID, count, Long::sum));
+        }
+        TableRenderer.println("=============== count the number of books by publisher in table Titles (" + shards.length + " shards) ================");
+        for (Map.Entry<Integer, Long> count : total.entrySet()){
+            TableRenderer.printf("Table Title: Number of books by Publisher %d is %d.%n", count.getKey(), count.getValue());
+        }
+    }
+
+    /**
+     * BooksPopulate.avgPriceByPublisher: total price over total count per publisher, rounded to cents
+     */
+    void avgPriceByPublisher() throws Exception {
+        List<Map<Integer, Object[]>> partials = scatter(conn -> {
+            Map<Integer, Object[]> sums = new HashMap<>();
+            try (ResultSet rs = StatementCache.of(conn).executeQuery(PRICE_BY_PUBLISHER_SQL)){
+                while (rs.next()){
+                    // publisherName, count, sum of prices
+                    sums.put(rs.getInt(1), new Object[]{rs.getString(2), rs.getLong(3), rs.getBigDecimal(4)});
+                }
+            }
+            return sums;
+        });
+        TreeMap<Integer, Object[]> total = new TreeMap<>();
+        for (Map<Integer, Object[]> partial : partials){
+            partial.forEach((publisherID, sum) -> total.merge(publisherID, sum, (a, b) -> new Object[]{
+                    a[0], (Long) a[1] + (Long) b[1], ((BigDecimal) a[2]).add((BigDecimal) b[2])}));
+        }
+        TableRenderer.println("=============== calculate average price by each publisher (" + shards.length + " shards) ==================");
+        for (Map.Entry<Integer, Object[]> sum : total.entrySet()){
+            Object[] value = sum.getValue();
+            BigDecimal avg = ((BigDecimal) value[2]).divide(BigDecimal.valueOf((Long) value[1]), 2, RoundingMode.HALF_UP);
+            TableRenderer.printf("Average price by Publisher %d (%s): %s.%n", sum.getKey(), value[0], avg);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        executor.shutdownNow();
+        for (Connection conn : shards){
+            conn.close();
         }
     }
+}
+
+/**
+ * Read/write splitting (--replicas=url1,url2,...). Mutations and the load keep using the primary
+ * connection; the SELECT-only report methods borrow a connection from the replica with the fewest
+ * reads in flight. With --maxReplicaLagSeconds a background check reads each replica's
+ * Seconds_Behind_Source every --lagCheckMillis and skips replicas that are further behind or not
+ * replicating. After a mutation the writing thread reads from the primary for
+ * --readYourWritesMillis, so it sees its own changes; after a load every thread does.
+ * When no replica qualifies (or one cannot be reached) the read falls back to the primary.
+ */
+class ReplicaRouter {
+    private static final long UNKNOWN_LAG = Long.MAX_VALUE;
 
+    private static class Replica {
+        final String url;
+        // reads in flight on this replica
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicLong reads = new AtomicLong();
+        volatile long lagSeconds;
+        // a replica that failed to connect is skipped until then
+        volatile long downUntilNanos;
+
+        Replica(String url){
+            this.url = url;
+        }
+    }
 
     /**
-     * edit publisher name.
-     * Update the existing information about a publisher: Change Johnson into Thompson
-     * @param conn
+     * a connection for one read; closing it returns a replica connection to its pool and
+     * leaves the primary connection open
      */
-    public static void editPublishers(Connection conn){
-        try{
-            PreparedStatement posted = conn.prepareStatement("UPDATE Publishers " +
-                    "SET publisherName = 'Thompson' " +
-                    "WHERE publisherID = 17 ;");
-            posted.executeUpdate();
-        } catch(Exception e){
-            System.out.println(e);
-        } finally{
-            System.out.println();
+    static class ReadLease implements AutoCloseable {
+        final Connection conn;
+        private final Replica replica;
+
+        ReadLease(Connection conn, Replica replica){
+            this.conn = conn;
+            this.replica = replica;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (replica != null){
+                try {
+                    conn.close();
+                } finally {
+                    replica.outstanding.decrementAndGet();
+                }
+            }
         }
     }
 
+    private static volatile Replica[] replicas = new Replica[0];
+    private static String username;
+    private static String password;
+    private static long maxLagSeconds = -1;
+    private static long pinNanos;
+    private static ScheduledExecutorService lagChecker;
+
+    // nanoTime of this thread's last mutation, and of the last load (which pins every thread); 0 for none
+    private static final ThreadLocal<long[]> LAST_WRITE = ThreadLocal.withInitial(() -> new long[1]);
+    private static volatile long lastLoadNanos;
+
+    private static final AtomicLong primaryReads = new AtomicLong();
+    private static final AtomicLong pinnedReads = new AtomicLong();
+
+    private ReplicaRouter(){
+    }
+
     /**
-     * check if changing publisher name is successful.
-     * @param stmt
-     * @throws Exception
+     * @param urls replica connection URLs; empty sends every read to the primary
+     * @param maxLag largest replica lag in seconds a read may see, or -1 for no bound (and no lag checks)
+     * @param lagCheckMillis how often the replica lag is read
+     * @param readYourWritesMillis how long reads stay on the primary after a mutation
      */
-    public static void editPublisherOK(Statement stmt) throws Exception{
-        ResultSet rs;
-        try{
-            rs = stmt.executeQuery("" +
-                    "SELECT * " +
-                    "FROM Publishers " +
-                    "WHERE publisherID = 17 AND publisherName = 'Thompson' ;");
-            System.out.println();
-            if (rs.next()){
-                System.out.println("========== Query 8: Edit publisher: Change Johnson into Thompson. \n" +
-                        "Result after edits: [publisher ID: +" + rs.getInt(1) +
-                        ", publisher name is Thompson: " + rs.getString(2).equals("Thompson") +
-                        "] =========");
+    static synchronized void configure(List<String> urls, String user, String pass, long maxLag,
+                                       long lagCheckMillis, long readYourWritesMillis){
+        close();
+        Replica[] configured = new Replica[urls.size()];
+        for (int i = 0; i < configured.length; i++){
+            configured[i] = new Replica(urls.get(i).trim());
+        }
+        username = user;
+        password = pass;
+        maxLagSeconds = maxLag;
+        pinNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+        if (configured.length > 0 && maxLag >= 0){
+            for (Replica replica : configured){
+                replica.lagSeconds = UNKNOWN_LAG;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            lagChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replica-lag-check");
+                t.setDaemon(true);
+                return t;
+            });
+            lagChecker.scheduleWithFixedDelay(() -> checkLag(configured), 0, lagCheckMillis, TimeUnit.MILLISECONDS);
+        }
+        replicas = configured;
+    }
+
+    /**
+     * @param primary the caller's primary connection
+     * @return a connection for a SELECT: the least busy eligible replica, or the primary
+     */
+    static ReadLease read(Connection primary){
+        Replica[] current = replicas;
+        if (current.length == 0){
+            return new ReadLease(primary, null);
+        }
+        long now = System.nanoTime();
+        if (pinned(LAST_WRITE.get()[0], now) || pinned(lastLoadNanos, now)){
+            pinnedReads.incrementAndGet();
+            return new ReadLease(primary, null);
+        }
+        while (true){
+            Replica best = null;
+            int bestOutstanding = Integer.MAX_VALUE;
+            for (Replica replica : current){
+                if (now - replica.downUntilNanos < 0 || (maxLagSeconds >= 0 && replica.lagSeconds > maxLagSeconds)){
+                    continue;
+                }
+                int outstanding = replica.outstanding.get();
+                if (outstanding < bestOutstanding){
+                    best = replica;
+                    bestOutstanding = outstanding;
+                }
+            }
+            if (best == null){
+                primaryReads.incrementAndGet();
+                return new ReadLease(primary, null);
+            }
+            best.outstanding.incrementAndGet();
+            try {
+                Connection conn = Book.getConnection(best.url, username, password);
+                best.reads.incrementAndGet();
+                return new ReadLease(conn, best);
+            } catch (Exception e){
+                best.outstanding.decrementAndGet();
+                best.downUntilNanos = now + TimeUnit.SECONDS.toNanos(5);
+            }
+        }
+    }
+
+    private static boolean pinned(long writeNanos, long now){
+        return writeNanos != 0 && now - writeNanos < pinNanos;
+    }
+
+    /**
+     * note a mutation by this thread; its reads go to the primary for the read-your-writes window
+     */
+    static void wrote(){
+        LAST_WRITE.get()[0] = System.nanoTime();
+    }
+
+    /**
+     * note a load; every thread's reads go to the primary for the read-your-writes window
+     */
+    static void loaded(){
+        lastLoadNanos = System.nanoTime();
+    }
+
+    private static void checkLag(Replica[] checked){
+        for (Replica replica : checked){
+            try (Connection conn = Book.getConnection(replica.url, username, password)){
+                replica.lagSeconds = lagOf(conn);
+            } catch (Exception e){
+                replica.lagSeconds = UNKNOWN_LAG;
+            }
+        }
+    }
+
+    /**
+     * @return Seconds_Behind_Source of the server, 0 if it is not a replica,
+     * UNKNOWN_LAG if replication is stopped
+     */
+    static long lagOf(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()){
+            ResultSet rs;
+            String column;
+            try {
+                rs = stmt.executeQuery("SHOW REPLICA STATUS");
+                column = "Seconds_Behind_Source";
+            } catch (SQLException e){
+                // servers before MySQL 8.0.22
+                rs = stmt.executeQuery("SHOW SLAVE STATUS");
+                column = "Seconds_Behind_Master";
+            }
+            try {
+                if (!rs.next()){
+                    return 0;
+                }
+                long lag = rs.getLong(column);
+                return rs.wasNull() ? UNKNOWN_LAG : lag;
+            } finally {
+                rs.close();
+            }
+        }
+    }
+
+    static synchronized void printStats(){
+        Replica[] current = replicas;
+        if (current.length == 0){
+            return;
+        }
+        System.out.println("Reads on the primary: " + primaryReads.get() + " (" + pinnedReads.get() + " pinned after a write)");
+        for (Replica replica : current){
+            System.out.println("Reads on replica " + replica.url + ": " + replica.reads.get() +
+                    (maxLagSeconds < 0 ? "" : replica.lagSeconds == UNKNOWN_LAG
+                            ? ", lag unknown" : ", lag " + replica.lagSeconds + "s"));
+        }
+    }
+
+    static synchronized void close(){
+        if (lagChecker != null){
+            lagChecker.shutdownNow();
+            lagChecker = null;
         }
+        replicas = new Replica[0];
     }
 }